@@ -0,0 +1,319 @@
+package com.nearinfinity.examples.zookeeper.lock;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.LockListener;
+import org.apache.zookeeper.recipes.lock.WriteLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures acquire/release cycles of the lock implementations side by side against an
+ * {@link EmbeddedZooKeeperServer}: {@link WriteLock}, {@link BlockingWriteLock}, {@link DistributedOperationExecutor}
+ * and Curator's {@link InterProcessMutex}, along with the protocol {@link WriteLock} started out with, replayed with
+ * plain ZooKeeper calls as the baseline the others are measured against.
+ * <p/>
+ * Every benchmark thread has its own ZooKeeper session and its own lock instance on one shared lock path, so the
+ * threads contend like separate processes would. With one thread ({@code -t 1}, the default) the figures are for
+ * uncontended acquisition; run with {@code -t 2}, {@code -t 4} and so on for throughput under that many contenders,
+ * and add {@code -prof gc} for the allocation rate. {@link BlockingWriteLock} and {@link DistributedOperationExecutor}
+ * print a line per acquisition, which is counted as part of what they cost.
+ * <pre>
+ * mvn -P jmh test-compile exec:exec -Djmh.args="LockBenchmark -t 4 -prof gc"
+ * </pre>
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+    private static final int ZK_PORT = 53183;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+    private static final int SESSION_TIMEOUT = 30000;
+    private static final String LOCK_PATH = "/benchmark-lock";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        private EmbeddedZooKeeperServer _server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            _server = new EmbeddedZooKeeperServer(ZK_PORT);
+            _server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void shutdown() {
+            _server.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Contender {
+
+        @Param({"LegacyProtocol", "WriteLock", "BlockingWriteLock", "DistributedOperationExecutor", "InterProcessMutex"})
+        public String lockType;
+
+        private Cycle _cycle;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws Exception {
+            if ("LegacyProtocol".equals(lockType)) {
+                _cycle = new LegacyProtocolCycle(connect());
+            } else if ("WriteLock".equals(lockType)) {
+                _cycle = new WriteLockCycle(connect());
+            } else if ("BlockingWriteLock".equals(lockType)) {
+                _cycle = new BlockingWriteLockCycle(connect());
+            } else if ("DistributedOperationExecutor".equals(lockType)) {
+                _cycle = new DistributedOperationExecutorCycle(connect());
+            } else if ("InterProcessMutex".equals(lockType)) {
+                _cycle = new InterProcessMutexCycle();
+            } else {
+                throw new IllegalArgumentException("Unknown lock type: " + lockType);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            _cycle.close();
+        }
+
+        private static ZooKeeper connect() throws Exception {
+            return new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT);
+        }
+    }
+
+    @Benchmark
+    public void acquireRelease(Contender contender, Blackhole blackhole) throws Exception {
+        contender._cycle.run(blackhole);
+    }
+
+    /**
+     * Acquires the lock, does a token amount of work while holding it and releases it again.
+     */
+    interface Cycle {
+
+        void run(Blackhole blackhole) throws Exception;
+
+        void close() throws Exception;
+    }
+
+    /**
+     * The acquisition protocol of the original recipe: an exists on the lock path, a getChildren looking for a znode
+     * left by an earlier attempt, the create and another getChildren, four round trips before the lock is even known
+     * to be free. A contender then watches the znode ahead of it and lists the children again once it goes.
+     */
+    static class LegacyProtocolCycle implements Cycle {
+
+        private static final byte[] DATA = {0x12, 0x34};
+        private static final Comparator<String> BY_SEQUENCE = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return a.substring(a.length() - 10).compareTo(b.substring(b.length() - 10));
+            }
+        };
+
+        private final ZooKeeper _zk;
+        private final String _prefix;
+
+        LegacyProtocolCycle(ZooKeeper zk) throws Exception {
+            _zk = zk;
+            _prefix = "x-" + zk.getSessionId() + "-";
+            try {
+                zk.create(LOCK_PATH, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // created by another benchmark thread
+            }
+        }
+
+        @Override
+        public void run(Blackhole blackhole) throws Exception {
+            _zk.exists(LOCK_PATH, false);
+            _zk.getChildren(LOCK_PATH, false);
+            String id = _zk.create(LOCK_PATH + "/" + _prefix, DATA, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+            String name = id.substring(LOCK_PATH.length() + 1);
+            while (true) {
+                List<String> children = _zk.getChildren(LOCK_PATH, false);
+                Collections.sort(children, BY_SEQUENCE);
+                int index = children.indexOf(name);
+                if (index == 0) {
+                    break;
+                }
+                final CountDownLatch deleted = new CountDownLatch(1);
+                Watcher watcher = new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        deleted.countDown();
+                    }
+                };
+                if (_zk.exists(LOCK_PATH + "/" + children.get(index - 1), watcher) != null) {
+                    deleted.await();
+                }
+            }
+            try {
+                blackhole.consume(id);
+            } finally {
+                _zk.delete(id, -1);
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            _zk.close();
+        }
+    }
+
+    static class WriteLockCycle implements Cycle, LockListener {
+
+        private final ZooKeeper _zk;
+        private final WriteLock _lock;
+
+        WriteLockCycle(ZooKeeper zk) {
+            _zk = zk;
+            _lock = new WriteLock(zk, LOCK_PATH, null, this);
+        }
+
+        @Override
+        public void run(Blackhole blackhole) throws Exception {
+            if (!_lock.lock()) {
+                synchronized (this) {
+                    while (!_lock.isOwner()) {
+                        wait();
+                    }
+                }
+            }
+            try {
+                blackhole.consume(_lock.getId());
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        @Override
+        public synchronized void lockAcquired() {
+            notifyAll();
+        }
+
+        @Override
+        public void lockReleased() {
+        }
+
+        @Override
+        public void close() throws Exception {
+            _zk.close();
+        }
+    }
+
+    static class BlockingWriteLockCycle implements Cycle {
+
+        private final ZooKeeper _zk;
+        private final BlockingWriteLock _lock;
+
+        BlockingWriteLockCycle(ZooKeeper zk) {
+            _zk = zk;
+            _lock = new BlockingWriteLock("benchmark", zk, LOCK_PATH);
+        }
+
+        @Override
+        public void run(Blackhole blackhole) throws Exception {
+            _lock.lock();
+            try {
+                blackhole.consume(_lock.getFencingToken());
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            _zk.close();
+        }
+    }
+
+    static class DistributedOperationExecutorCycle implements Cycle {
+
+        private final ZooKeeper _zk;
+        private final DistributedOperationExecutor _executor;
+
+        DistributedOperationExecutorCycle(ZooKeeper zk) {
+            _zk = zk;
+            _executor = new DistributedOperationExecutor(zk);
+        }
+
+        @Override
+        public void run(final Blackhole blackhole) throws Exception {
+            _executor.withLock("benchmark", LOCK_PATH, new DistributedOperation<Void>() {
+                @Override
+                public Void execute() {
+                    blackhole.consume(this);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void close() throws Exception {
+            _zk.close();
+        }
+    }
+
+    static class InterProcessMutexCycle implements Cycle {
+
+        private final CuratorFramework _client;
+        private final InterProcessMutex _mutex;
+
+        InterProcessMutexCycle() throws Exception {
+            _client = CuratorFrameworkFactory.newClient(ZK_CONNECTION_STRING, new RetryOneTime(1));
+            _client.start();
+            _client.getZookeeperClient().blockUntilConnectedOrTimedOut();
+            _mutex = new InterProcessMutex(_client, LOCK_PATH);
+        }
+
+        @Override
+        public void run(Blackhole blackhole) throws Exception {
+            _mutex.acquire();
+            try {
+                blackhole.consume(_mutex.isAcquiredInThisProcess());
+            } finally {
+                _mutex.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            _client.close();
+        }
+    }
+}
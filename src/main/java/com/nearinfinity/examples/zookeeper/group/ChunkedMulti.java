@@ -0,0 +1,89 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Runs any number of ops with {@link ZooKeeper#multi(Iterable)}, a round trip per chunk instead of per op.
+ * <p/>
+ * Neither the request nor the response of a multi may exceed jute.maxbuffer, one megabyte unless configured otherwise,
+ * so ops are sent in chunks of at most half of it, going by an estimate of each op's size. Each chunk is atomic, but
+ * the chunks are not: if one fails the ones sent before it stay applied, and nothing after it is sent.
+ */
+final class ChunkedMulti {
+
+    static final int DEFAULT_MAX_CHUNK_BYTES = Integer.getInteger("jute.maxbuffer", 0xfffff) / 2;
+    static final int DEFAULT_MAX_CHUNK_OPS = 1000;
+
+    // the headers of an op and its result plus the ACL of a create, rounded up
+    private static final int OP_OVERHEAD_BYTES = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ZooKeeper _zk;
+    private final int _maxChunkBytes;
+    private final int _maxChunkOps;
+    private final List<Op> _chunk = new ArrayList<Op>();
+    private int _chunkBytes;
+    private int _chunks;
+    private final List<OpResult> _results = new ArrayList<OpResult>();
+
+    ChunkedMulti(ZooKeeper zk) {
+        this(zk, DEFAULT_MAX_CHUNK_BYTES, DEFAULT_MAX_CHUNK_OPS);
+    }
+
+    ChunkedMulti(ZooKeeper zk, int maxChunkBytes, int maxChunkOps) {
+        _zk = zk;
+        _maxChunkBytes = maxChunkBytes;
+        _maxChunkOps = maxChunkOps;
+    }
+
+    /**
+     * Adds an op, first sending the ops added so far if it does not fit in their chunk
+     *
+     * @param path the path of the op
+     * @param data the data the op carries, or null
+     */
+    void add(Op op, String path, byte[] data) throws KeeperException, InterruptedException {
+        // the path goes out with the request and, for a create, comes back with the result
+        int bytes = OP_OVERHEAD_BYTES + 2 * path.getBytes(UTF8).length + (data != null ? data.length : 0);
+        if (!_chunk.isEmpty() && (_chunkBytes + bytes > _maxChunkBytes || _chunk.size() >= _maxChunkOps)) {
+            flush();
+        }
+        _chunk.add(op);
+        _chunkBytes += bytes;
+    }
+
+    /**
+     * Sends the ops not sent yet
+     *
+     * @return the results of every op added, in the order they were added
+     */
+    List<OpResult> commit() throws KeeperException, InterruptedException {
+        flush();
+        return _results;
+    }
+
+    /**
+     * Returns the number of chunks sent so far
+     */
+    int getChunkCount() {
+        return _chunks;
+    }
+
+    private void flush() throws KeeperException, InterruptedException {
+        if (_chunk.isEmpty()) {
+            return;
+        }
+        _chunks++;
+        List<OpResult> results = _zk.multi(_chunk);
+        _results.addAll(results);
+        _chunk.clear();
+        _chunkBytes = 0;
+    }
+}
@@ -3,20 +3,36 @@ package com.nearinfinity.examples.zookeeper.group;
 import java.util.List;
 
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 
 import com.nearinfinity.examples.zookeeper.util.ConnectionWatcher;
 
 public class DeleteGroup extends ConnectionWatcher {
 
+    /**
+     * Deletes the group and its members. The members are deleted with as few multi requests as fit under the jute max
+     * buffer, the last of which deletes the group too, so a small group takes one round trip after listing it.
+     */
     public void delete(String groupName) throws KeeperException, InterruptedException {
         String path = "/" + groupName;
 
         try {
             List<String> children = zk.getChildren(path, false);
-            for (String child : children) {
-                zk.delete(path + "/" + child, -1);
+            try {
+                ChunkedMulti multi = new ChunkedMulti(zk);
+                for (String child : children) {
+                    String childPath = path + "/" + child;
+                    multi.add(Op.delete(childPath, -1), childPath, null);
+                }
+                multi.add(Op.delete(path, -1), path, null);
+                multi.commit();
+            } catch (KeeperException e) {
+                if (!isMembershipChange(e)) {
+                    throw e;
+                }
+                // a member left or joined since the listing, which fails its whole multi; go one at a time instead
+                deleteOneByOne(path);
             }
-            zk.delete(path, -1);
             System.out.printf("Deleted group %s at path %s\n", groupName, path);
         }
         catch (KeeperException.NoNodeException e) {
@@ -24,6 +40,30 @@ public class DeleteGroup extends ConnectionWatcher {
         }
     }
 
+    private static boolean isMembershipChange(KeeperException e) {
+        switch (e.code()) {
+            case NONODE:
+            case NOTEMPTY:
+            case NODEEXISTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void deleteOneByOne(String path) throws KeeperException, InterruptedException {
+        List<String> children = zk.getChildren(path, false);
+        for (String child : children) {
+            try {
+                zk.delete(path + "/" + child, -1);
+            }
+            catch (KeeperException.NoNodeException e) {
+                // already left
+            }
+        }
+        zk.delete(path, -1);
+    }
+
 
     public static void main(String[] args) throws Exception {
         DeleteGroup deleteGroup = new DeleteGroup();
@@ -0,0 +1,256 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Keeps the sorted membership of a group up to date and tells {@link MembershipListener}s only which members joined
+ * or left.
+ * <p/>
+ * ZooKeeper always hands back the whole child list, so every change still costs one listing. What is saved is the
+ * rest: the listing is compared with the previous one through a hash set in linear time instead of being sorted, and
+ * only the members which joined or left are added to or removed from the sorted set. Listings are made with the async
+ * API, so the ZooKeeper event thread is never blocked and listeners are called on it one change at a time, in order.
+ * <p/>
+ * If the group is deleted every member is reported as having left, and the cache waits for the group to be created
+ * again. A listing which fails with a connection loss is retried after {@link #RETRY_DELAY_MILLIS}. Once the session
+ * has expired the cache stops and keeps the last membership it saw.
+ */
+public class GroupMembershipCache {
+
+    public static final long RETRY_DELAY_MILLIS = RetryScheduler.RETRY_DELAY_MILLIS;
+
+    private final ZooKeeper _zooKeeper;
+    private final String _groupPath;
+    private final List<MembershipListener> _listeners = new CopyOnWriteArrayList<MembershipListener>();
+    // both only ever replaced or changed on the ZooKeeper event thread, and read under this
+    private Set<String> _index = new HashSet<String>();
+    private final SortedSet<String> _members = new TreeSet<String>();
+    // held while listeners are called, so one being added can be caught up without missing or repeating a change
+    private final Object _delivery = new Object();
+    private final Watcher _watcher;
+    private volatile boolean _closed;
+
+    private final AsyncCallback.ChildrenCallback _childrenCallback = new AsyncCallback.ChildrenCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    update(children);
+                    break;
+                case NONODE:
+                    update(Collections.<String>emptyList());
+                    // resume once the group is created again
+                    _zooKeeper.exists(_groupPath, _watcher, _existsCallback, null);
+                    break;
+                case CONNECTIONLOSS:
+                    scheduleRefresh();
+                    break;
+                default:
+                    System.out.printf("Stopped caching members of %s: %s\n", _groupPath, KeeperException.Code.get(rc));
+                    break;
+            }
+        }
+    };
+
+    private final AsyncCallback.StatCallback _existsCallback = new AsyncCallback.StatCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK) {
+                // created between the listing and the exists; the exists watch fires only for its deletion
+                refresh();
+            } else if (code == KeeperException.Code.CONNECTIONLOSS) {
+                scheduleRefresh();
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        ZooKeeper zk = new ConnectionHelper().connect(args[0]);
+        GroupMembershipCache cache = new GroupMembershipCache(zk, args[1]);
+        cache.addListener(new MembershipListener() {
+            @Override
+            public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+                System.out.printf("joined %s, left %s\n", joined, left);
+                System.out.println("--------------------");
+            }
+        });
+        cache.start();
+
+        // stay alive until process is killed or thread is interrupted
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    public GroupMembershipCache(ZooKeeper zooKeeper, String groupName) {
+        this(zooKeeper, groupName, null);
+    }
+
+    /**
+     * @param watcher the watcher to set on the group, which has to pass the events for the group path on to
+     *                {@link #process(WatchedEvent)}; null for the cache to use its own
+     */
+    GroupMembershipCache(ZooKeeper zooKeeper, String groupName, Watcher watcher) {
+        _zooKeeper = zooKeeper;
+        _groupPath = "/" + groupName;
+        _watcher = watcher != null ? watcher : new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                GroupMembershipCache.this.process(event);
+            }
+        };
+    }
+
+    /**
+     * Adds a listener for changes from now on. Listeners added before {@link #start()} are told about every member of
+     * the first listing as having joined; later ones can get the current members from {@link #getMembers()}.
+     */
+    public void addListener(MembershipListener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Adds a listener, first telling it about every current member as having joined. Unlike calling
+     * {@link #getMembers()} after {@link #addListener(MembershipListener)} no change can be missed or seen twice.
+     */
+    public void addListenerWithMembers(MembershipListener listener) {
+        synchronized (_delivery) {
+            SortedSet<String> members = getMembers();
+            if (!members.isEmpty()) {
+                notifyListener(listener, Collections.unmodifiableSortedSet(members),
+                        Collections.unmodifiableSortedSet(new TreeSet<String>()));
+            }
+            _listeners.add(listener);
+        }
+    }
+
+    /**
+     * @return true if the listener had been added
+     */
+    public boolean removeListener(MembershipListener listener) {
+        return _listeners.remove(listener);
+    }
+
+    /**
+     * Starts listing the group. Returns without waiting for the first listing.
+     */
+    public void start() {
+        refresh();
+    }
+
+    /**
+     * Stops updating the cache. Watches already set are left to fire once and are then ignored.
+     */
+    public void close() {
+        _closed = true;
+    }
+
+    /**
+     * Returns a sorted copy of the current members.
+     */
+    public synchronized SortedSet<String> getMembers() {
+        return new TreeSet<String>(_members);
+    }
+
+    public synchronized boolean isMember(String member) {
+        return _index.contains(member);
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    public String getGroupPath() {
+        return _groupPath;
+    }
+
+    /**
+     * Handles an event from the watch set on the group
+     */
+    void process(WatchedEvent event) {
+        switch (event.getType()) {
+            case NodeChildrenChanged:
+            case NodeCreated:
+            case NodeDeleted:
+                refresh();
+                break;
+            default:
+                // connection state changes; the watch stays registered across reconnects
+                break;
+        }
+    }
+
+    private void refresh() {
+        if (!_closed) {
+            _zooKeeper.getChildren(_groupPath, _watcher, _childrenCallback, null);
+        }
+    }
+
+    private void scheduleRefresh() {
+        RetryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    private void update(List<String> children) {
+        Set<String> index = new HashSet<String>(children);
+        SortedSet<String> joined = new TreeSet<String>();
+        SortedSet<String> left = new TreeSet<String>();
+        synchronized (_delivery) {
+            if (_closed) {
+                return;
+            }
+            synchronized (this) {
+                for (String member : _index) {
+                    if (!index.contains(member)) {
+                        left.add(member);
+                    }
+                }
+                for (String child : children) {
+                    if (!_index.contains(child)) {
+                        joined.add(child);
+                    }
+                }
+                _index = index;
+                _members.removeAll(left);
+                _members.addAll(joined);
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            joined = Collections.unmodifiableSortedSet(joined);
+            left = Collections.unmodifiableSortedSet(left);
+            for (MembershipListener listener : _listeners) {
+                notifyListener(listener, joined, left);
+            }
+        }
+    }
+
+    /**
+     * Calls a listener, so one which throws neither keeps the others from hearing about the change nor stops the
+     * cache, as the exception would otherwise end up on the ZooKeeper event thread
+     */
+    private void notifyListener(MembershipListener listener, SortedSet<String> joined, SortedSet<String> left) {
+        try {
+            listener.membershipChanged(joined, left);
+        } catch (RuntimeException e) {
+            System.out.printf("Listener for members of %s failed: %s\n", _groupPath, e);
+        }
+    }
+}
@@ -5,24 +5,40 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
+/**
+ * Iterates over the membership of a group, blocking in {@code hasNext()} until the membership changes.
+ * <p/>
+ * By default every change is listed as soon as it is seen. In coalescing mode a change is only listed once the group
+ * has been quiet for the debounce window, or the max delay has passed since the change was seen, whichever comes
+ * first. Whether the group is still changing is checked with a cheap {@code exists} comparing child versions, so a
+ * burst of joins or leaves, such as a whole rack reconnecting, costs one listing and yields one snapshot.
+ */
 public class GroupMembershipIterable implements Iterable<List<String>> {
 
     private ZooKeeper _zooKeeper;
     private String _groupName;
     private String _groupPath;
     private Semaphore _semaphore = new Semaphore(1);
+    private final long _debounceMillis;
+    private final long _maxDelayMillis;
+    private volatile boolean _listed;
 
     public static void main(String[] args) throws IOException, InterruptedException {
         ZooKeeper zk = new ConnectionHelper().connect(args[0]);
         String theGroupName = args[1];
-        GroupMembershipIterable iterable = new GroupMembershipIterable(zk, theGroupName);
+        GroupMembershipIterable iterable = args.length > 3
+                ? new GroupMembershipIterable(zk, theGroupName,
+                        Long.parseLong(args[2]), Long.parseLong(args[3]), TimeUnit.MILLISECONDS)
+                : new GroupMembershipIterable(zk, theGroupName);
         Iterator<List<String>> iterator = iterable.iterator();
         while (iterator.hasNext()) {
             System.out.println(iterator.next());
@@ -32,9 +48,27 @@ public class GroupMembershipIterable implements Iterable<List<String>> {
     }
 
     public GroupMembershipIterable(ZooKeeper zooKeeper, String groupName) {
+        this(zooKeeper, groupName, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates an iterable in coalescing mode.
+     *
+     * @param debounce how long the group has to be quiet before a change is listed; zero lists every change straight
+     *                 away
+     * @param maxDelay the longest a change waits for the group to become quiet
+     */
+    public GroupMembershipIterable(ZooKeeper zooKeeper, String groupName, long debounce, long maxDelay,
+                                   TimeUnit unit) {
+        if (debounce < 0 || maxDelay < debounce) {
+            throw new IllegalArgumentException("Need 0 <= debounce <= maxDelay but got " + debounce + " and "
+                    + maxDelay);
+        }
         _zooKeeper = zooKeeper;
         _groupName = groupName;
         _groupPath = pathFor(groupName);
+        _debounceMillis = unit.toMillis(debounce);
+        _maxDelayMillis = unit.toMillis(maxDelay);
     }
 
     @Override
@@ -44,7 +78,11 @@ public class GroupMembershipIterable implements Iterable<List<String>> {
             public boolean hasNext() {
                 try {
                     _semaphore.acquire();
-                    return _zooKeeper.exists(_groupPath, false) != null;
+                    Stat stat = _zooKeeper.exists(_groupPath, false);
+                    if (stat != null && _listed && _debounceMillis > 0) {
+                        stat = awaitQuiet(stat);
+                    }
+                    return stat != null;
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 } catch (KeeperException e) {
@@ -70,6 +108,34 @@ public class GroupMembershipIterable implements Iterable<List<String>> {
         };
     }
 
+    /**
+     * Waits until the child version of the group stays the same for the debounce window, or the max delay runs out
+     *
+     * @return the last stat of the group, or null if it has been deleted
+     */
+    private Stat awaitQuiet(Stat stat) throws KeeperException, InterruptedException {
+        long deadline = System.currentTimeMillis() + _maxDelayMillis;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            Thread.sleep(Math.min(_debounceMillis, remaining));
+            Stat latest = _zooKeeper.exists(_groupPath, false);
+            if (latest == null) {
+                return null;
+            }
+            boolean quiet = latest.getCversion() == stat.getCversion();
+            stat = latest;
+            if (quiet) {
+                break;
+            }
+        }
+        // the next listing covers every change seen so far, and sets a new watch for the ones after it
+        _semaphore.drainPermits();
+        return stat;
+    }
+
     private List<String> list(final String groupName) throws KeeperException, InterruptedException {
         String path = pathFor(groupName);
         List<String> children = _zooKeeper.getChildren(path, new Watcher() {
@@ -82,6 +148,7 @@ public class GroupMembershipIterable implements Iterable<List<String>> {
                 }
             }
         });
+        _listed = true;
         Collections.sort(children);
         return children;
     }
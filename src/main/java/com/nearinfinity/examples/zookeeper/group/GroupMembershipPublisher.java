@@ -0,0 +1,314 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Publishes the membership of a group as {@link MembershipSnapshot}s to any number of {@link MembershipSubscriber}s
+ * without blocking a thread per subscriber.
+ * <p/>
+ * The group is listed with the async getChildren API from the first subscription on, once per change however many
+ * subscribers there are, and each listing is sorted once and shared by all of them. Deliveries run on an executor,
+ * one at a time per subscriber, so a slow subscriber only holds up itself. Subscribers get no more snapshots than they
+ * requested; one which is behind is handed the latest snapshot when it asks for the next, never a backlog. The same
+ * interfaces as {@code java.util.concurrent.Flow} are used, declared here as this project still builds for Java 6.
+ * <p/>
+ * Subscribers are completed when the group is deleted or the publisher is closed, and failed when the group can no
+ * longer be listed, such as after the session has expired. A subscriber whose onNext throws is cancelled and failed
+ * with the exception. A listing which fails with a connection loss is retried
+ * after a short delay.
+ */
+public class GroupMembershipPublisher {
+
+    private static final Executor DEFAULT_EXECUTOR = newDefaultExecutor();
+
+    private final ZooKeeper _zooKeeper;
+    private final String _groupPath;
+    private final Executor _executor;
+    private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private MembershipSnapshot _latest;  // guarded by this
+    private boolean _started;  // guarded by this
+    private volatile boolean _closed;
+
+    private final Watcher _watcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.NodeChildrenChanged
+                    || event.getType() == Event.EventType.NodeDeleted) {
+                list();
+            } else if (event.getState() == Event.KeeperState.Expired) {
+                // the watch is gone with the session, so no change would ever be seen again
+                terminate(KeeperException.create(KeeperException.Code.SESSIONEXPIRED));
+            }
+        }
+    };
+
+    private final AsyncCallback.Children2Callback _childrenCallback = new AsyncCallback.Children2Callback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            switch (code) {
+                case OK:
+                    Collections.sort(children);
+                    publish(new MembershipSnapshot(_groupPath, children, stat.getCversion()));
+                    break;
+                case NONODE:
+                    terminate(null);
+                    break;
+                case CONNECTIONLOSS:
+                    RetryScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            list();
+                        }
+                    });
+                    break;
+                default:
+                    terminate(KeeperException.create(code, path));
+                    break;
+            }
+        }
+    };
+
+    public static void main(final String[] args) throws Exception {
+        ZooKeeper zk = new ConnectionHelper().connect(args[0]);
+        GroupMembershipPublisher publisher = new GroupMembershipPublisher(zk, args[1]);
+        publisher.subscribe(new MembershipSubscriber() {
+            private MembershipSubscription _subscription;
+
+            @Override
+            public void onSubscribe(MembershipSubscription subscription) {
+                _subscription = subscription;
+                _subscription.request(1);
+            }
+
+            @Override
+            public void onNext(MembershipSnapshot snapshot) {
+                System.out.println(snapshot.getMembers());
+                System.out.println("--------------------");
+                _subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                System.out.printf("Cannot list group %s: %s\n", args[1], error);
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.printf("Group %s does not exist (anymore)!\n", args[1]);
+            }
+        });
+
+        // stay alive until process is killed or thread is interrupted
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    public GroupMembershipPublisher(ZooKeeper zooKeeper, String groupName) {
+        this(zooKeeper, groupName, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param executor runs the deliveries to subscribers; it needs no more threads than deliveries should run at once
+     */
+    public GroupMembershipPublisher(ZooKeeper zooKeeper, String groupName, Executor executor) {
+        _zooKeeper = zooKeeper;
+        _groupPath = "/" + groupName;
+        _executor = executor;
+    }
+
+    /**
+     * Subscribes to the group. The subscriber is handed the latest snapshot when it first requests one, and every
+     * change after that as it keeps requesting.
+     */
+    public void subscribe(MembershipSubscriber subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        boolean start;
+        synchronized (this) {
+            if (_closed) {
+                subscription.terminate(null);
+                return;
+            }
+            _subscriptions.add(subscription);
+            if (_latest != null) {
+                subscription.offer(_latest);
+            }
+            start = !_started;
+            _started = true;
+        }
+        if (start) {
+            list();
+        }
+    }
+
+    /**
+     * Stops listing the group and completes every subscriber.
+     */
+    public void close() {
+        terminate(null);
+    }
+
+    public String getGroupPath() {
+        return _groupPath;
+    }
+
+    int getSubscriberCount() {
+        return _subscriptions.size();
+    }
+
+    private void list() {
+        if (!_closed) {
+            _zooKeeper.getChildren(_groupPath, _watcher, _childrenCallback, null);
+        }
+    }
+
+    private synchronized void publish(MembershipSnapshot snapshot) {
+        if (_closed) {
+            return;
+        }
+        _latest = snapshot;
+        for (Subscription subscription : _subscriptions) {
+            subscription.offer(snapshot);
+        }
+    }
+
+    /**
+     * @param error the error to fail subscribers with, or null to complete them
+     */
+    private synchronized void terminate(Throwable error) {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        for (Subscription subscription : _subscriptions) {
+            subscription.terminate(error);
+        }
+        _subscriptions.clear();
+    }
+
+    private static Executor newDefaultExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "membership-publisher-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Delivers to one subscriber. Whoever changes its state schedules a drain on the executor unless one is already
+     * scheduled or running, and the drain keeps going until there is nothing left it can deliver, so calls to the
+     * subscriber never overlap.
+     */
+    private class Subscription implements MembershipSubscription, Runnable {
+
+        private final MembershipSubscriber _subscriber;
+        private final AtomicLong _requested = new AtomicLong();
+        private final AtomicReference<MembershipSnapshot> _pending = new AtomicReference<MembershipSnapshot>();
+        private final AtomicInteger _work = new AtomicInteger();
+        private volatile boolean _cancelled;
+        private volatile boolean _terminated;
+        private volatile Throwable _error;
+
+        Subscription(MembershipSubscriber subscriber) {
+            _subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(new IllegalArgumentException("Requested " + n + " snapshots, which is not positive"));
+                return;
+            }
+            long requested;
+            long next;
+            do {
+                requested = _requested.get();
+                next = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            } while (!_requested.compareAndSet(requested, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            _cancelled = true;
+            _subscriptions.remove(this);
+        }
+
+        void offer(MembershipSnapshot snapshot) {
+            // a snapshot still waiting for demand is stale now
+            _pending.set(snapshot);
+            drain();
+        }
+
+        void terminate(Throwable error) {
+            _error = error;
+            _terminated = true;
+            drain();
+        }
+
+        private void drain() {
+            if (_work.getAndIncrement() == 0) {
+                _executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (!_cancelled) {
+                if (_terminated) {
+                    _cancelled = true;
+                    _subscriptions.remove(this);
+                    if (_error != null) {
+                        _subscriber.onError(_error);
+                    } else {
+                        _subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (_requested.get() > 0) {
+                    MembershipSnapshot snapshot = _pending.getAndSet(null);
+                    if (snapshot != null) {
+                        if (_requested.get() != Long.MAX_VALUE) {
+                            _requested.decrementAndGet();
+                        }
+                        try {
+                            _subscriber.onNext(snapshot);
+                        } catch (RuntimeException e) {
+                            // the subscriber is broken, so it gets nothing more, but is still told why
+                            cancel();
+                            _subscriber.onError(e);
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                missed = _work.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
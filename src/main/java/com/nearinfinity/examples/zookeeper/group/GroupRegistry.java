@@ -0,0 +1,151 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Observes the membership of many groups over one {@link ZooKeeper} session.
+ * <p/>
+ * Every group is watched with the same watcher, which routes each event to the {@link GroupMembershipCache} of its
+ * path. The ZooKeeper client keeps one registration per path and watcher, so however many listeners subscribe to a
+ * group it costs one watch and one listing per change, and there is no thread per group: listings are async and
+ * listeners are called on the session's event thread. A group is dropped once its last listener unsubscribes.
+ */
+public class GroupRegistry {
+
+    private final ZooKeeper _zooKeeper;
+    private final Map<String, Group> _groups = new HashMap<String, Group>();
+
+    private final Watcher _dispatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getPath() == null) {
+                // connection state changes; the watches stay registered across reconnects
+                return;
+            }
+            Group group;
+            synchronized (_groups) {
+                group = _groups.get(event.getPath());
+            }
+            if (group != null) {
+                group._cache.process(event);
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        ZooKeeper zk = new ConnectionHelper().connect(args[0]);
+        GroupRegistry registry = new GroupRegistry(zk);
+        for (int i = 1; i < args.length; i++) {
+            final String groupName = args[i];
+            registry.subscribe(groupName, new MembershipListener() {
+                @Override
+                public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+                    System.out.printf("%s: joined %s, left %s\n", groupName, joined, left);
+                }
+            });
+        }
+
+        // stay alive until process is killed or thread is interrupted
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    public GroupRegistry(ZooKeeper zooKeeper) {
+        _zooKeeper = zooKeeper;
+    }
+
+    /**
+     * Subscribes a listener to a group, starting to watch the group if nobody else is. The listener is first told
+     * about the members already known as having joined, then about every change.
+     */
+    public void subscribe(String groupName, MembershipListener listener) {
+        String groupPath = "/" + groupName;
+        Group group;
+        boolean created = false;
+        synchronized (_groups) {
+            group = _groups.get(groupPath);
+            if (group == null) {
+                group = new Group(new GroupMembershipCache(_zooKeeper, groupName, _dispatcher));
+                _groups.put(groupPath, group);
+                created = true;
+            }
+            // counted now so the group cannot be dropped before the listener is added
+            group._subscribers++;
+        }
+        // outside the lock, as catching the listener up calls it
+        group._cache.addListenerWithMembers(listener);
+        if (created) {
+            group._cache.start();
+        }
+    }
+
+    /**
+     * Unsubscribes a listener from a group, and stops watching the group if it was the last one.
+     */
+    public void unsubscribe(String groupName, MembershipListener listener) {
+        String groupPath = "/" + groupName;
+        synchronized (_groups) {
+            Group group = _groups.get(groupPath);
+            if (group == null || !group._cache.removeListener(listener)) {
+                return;
+            }
+            if (--group._subscribers == 0) {
+                _groups.remove(groupPath);
+                group._cache.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the sorted members of a group as last seen, or an empty set if the group is not subscribed to.
+     */
+    public SortedSet<String> getMembers(String groupName) {
+        Group group;
+        synchronized (_groups) {
+            group = _groups.get("/" + groupName);
+        }
+        return group != null ? group._cache.getMembers() : new TreeSet<String>();
+    }
+
+    /**
+     * Returns the number of groups being watched.
+     */
+    public int getGroupCount() {
+        synchronized (_groups) {
+            return _groups.size();
+        }
+    }
+
+    /**
+     * Stops watching every group. Listeners are not told.
+     */
+    public void close() {
+        List<Group> groups;
+        synchronized (_groups) {
+            groups = new ArrayList<Group>(_groups.values());
+            _groups.clear();
+        }
+        for (Group group : groups) {
+            group._cache.close();
+        }
+    }
+
+    private static class Group {
+
+        private final GroupMembershipCache _cache;
+        private int _subscribers;  // guarded by _groups
+
+        Group(GroupMembershipCache cache) {
+            _cache = cache;
+        }
+    }
+}
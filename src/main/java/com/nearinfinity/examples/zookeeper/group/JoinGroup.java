@@ -1,7 +1,14 @@
 package com.nearinfinity.examples.zookeeper.group;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.ZooDefs;
 
 import com.nearinfinity.examples.zookeeper.util.ConnectionWatcher;
@@ -17,10 +24,57 @@ public class JoinGroup extends ConnectionWatcher {
         System.out.println("Created " + createdPath);
     }
 
+    /**
+     * Joins many members at once, creating their ephemeral znodes with as few multi requests as fit under the jute max
+     * buffer rather than one create each. Each multi is atomic, the whole call is not: if one fails, for example
+     * because a member already exists, the members joined by the ones before it stay joined.
+     *
+     * @return the paths of the created znodes, in the order of the members
+     */
+    public List<String> joinAll(String groupName, Collection<String> memberNames)
+            throws KeeperException, InterruptedException {
+        String groupPath = "/" + groupName;
+        ChunkedMulti multi = new ChunkedMulti(zk);
+        for (String memberName : memberNames) {
+            String path = groupPath + "/" + memberName;
+            multi.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL), path, null);
+        }
+        List<OpResult> results = multi.commit();
+        List<String> createdPaths = new ArrayList<String>(results.size());
+        for (OpResult result : results) {
+            createdPaths.add(((OpResult.CreateResult) result).getPath());
+        }
+        System.out.printf("Created %d members of %s in %d round trips\n", createdPaths.size(), groupPath,
+                multi.getChunkCount());
+        return createdPaths;
+    }
+
+    /**
+     * Makes many members leave at once, deleting their znodes with as few multi requests as fit under the jute max
+     * buffer. As with {@link #joinAll(String, Collection)} a failure, such as a member which is already gone, leaves
+     * the members deleted by the earlier requests deleted.
+     */
+    public void leaveAll(String groupName, Collection<String> memberNames)
+            throws KeeperException, InterruptedException {
+        String groupPath = "/" + groupName;
+        ChunkedMulti multi = new ChunkedMulti(zk);
+        for (String memberName : memberNames) {
+            String path = groupPath + "/" + memberName;
+            multi.add(Op.delete(path, -1), path, null);
+        }
+        multi.commit();
+        System.out.printf("Deleted %d members of %s in %d round trips\n", memberNames.size(), groupPath,
+                multi.getChunkCount());
+    }
+
     public static void main(String[] args) throws Exception {
         JoinGroup joinGroup = new JoinGroup();
         joinGroup.connect(args[0]);
-        joinGroup.join(args[1], args[2]);
+        if (args.length > 3) {
+            joinGroup.joinAll(args[1], Arrays.asList(args).subList(2, args.length));
+        } else {
+            joinGroup.join(args[1], args[2]);
+        }
 
         // stay alive until process is killed or thread is interrupted
         Thread.sleep(Long.MAX_VALUE);
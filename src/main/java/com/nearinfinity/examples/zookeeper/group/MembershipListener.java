@@ -0,0 +1,18 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.SortedSet;
+
+/**
+ * Told about the members which joined or left a group since the last time it was called.
+ */
+public interface MembershipListener {
+
+    /**
+     * Called with the changes between two listings of the group, in the order the listings were made.
+     * At least one of the sets is non-empty, and neither can be modified.
+     *
+     * @param joined the members which joined, in sorted order
+     * @param left   the members which left, in sorted order
+     */
+    void membershipChanged(SortedSet<String> joined, SortedSet<String> left);
+}
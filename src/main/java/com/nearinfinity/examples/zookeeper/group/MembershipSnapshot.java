@@ -0,0 +1,50 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The sorted members of a group as of one listing, along with the child version of the group at that listing.
+ */
+public final class MembershipSnapshot {
+
+    private final String _groupPath;
+    private final List<String> _members;
+    private final int _version;
+
+    /**
+     * @param members the sorted members, which must not be changed afterwards
+     */
+    MembershipSnapshot(String groupPath, List<String> members, int version) {
+        _groupPath = groupPath;
+        _members = Collections.unmodifiableList(members);
+        _version = version;
+    }
+
+    public String getGroupPath() {
+        return _groupPath;
+    }
+
+    /**
+     * Returns the members in sorted order; the list cannot be modified.
+     */
+    public List<String> getMembers() {
+        return _members;
+    }
+
+    /**
+     * Returns the child version of the group, which grows with every join or leave.
+     */
+    public int getVersion() {
+        return _version;
+    }
+
+    public int size() {
+        return _members.size();
+    }
+
+    @Override
+    public String toString() {
+        return _groupPath + "@" + _version + _members;
+    }
+}
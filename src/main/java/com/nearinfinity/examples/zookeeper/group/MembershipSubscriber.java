@@ -0,0 +1,27 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+/**
+ * Receives the snapshots of a group's membership from a {@link GroupMembershipPublisher}. Modelled on the reactive
+ * streams subscriber: methods are called one at a time, never concurrently,
+ * {@link #onSubscribe(MembershipSubscription)} first, and at most one of {@link #onError(Throwable)} or
+ * {@link #onComplete()} last.
+ */
+public interface MembershipSubscriber {
+
+    /**
+     * Called once before anything else. Nothing is delivered until snapshots are requested from the subscription.
+     */
+    void onSubscribe(MembershipSubscription subscription);
+
+    void onNext(MembershipSnapshot snapshot);
+
+    /**
+     * Called if the group can no longer be observed, for example because the session has expired.
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called when the group is deleted or the publisher is closed.
+     */
+    void onComplete();
+}
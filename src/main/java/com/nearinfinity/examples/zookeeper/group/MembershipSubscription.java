@@ -0,0 +1,21 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+/**
+ * The link between a {@link MembershipSubscriber} and the publisher it subscribed to.
+ * <p/>
+ * Snapshots are only delivered as far as they have been requested. Snapshots are not queued up for a subscriber which
+ * is behind: while nothing is requested only the latest one is kept, and it is delivered as soon as one is requested.
+ */
+public interface MembershipSubscription {
+
+    /**
+     * Requests up to {@code n} more snapshots; {@link Long#MAX_VALUE} requests all of them. A count of zero or less
+     * fails the subscription with an {@link IllegalArgumentException}.
+     */
+    void request(long n);
+
+    /**
+     * Stops delivering to the subscriber. A call already in progress is not interrupted.
+     */
+    void cancel();
+}
@@ -0,0 +1,32 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the retries of async listings which failed with a connection loss after a short delay, on one daemon thread
+ * shared by every group observer.
+ */
+final class RetryScheduler {
+
+    static final long RETRY_DELAY_MILLIS = 500;
+
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "group-membership-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private RetryScheduler() {
+    }
+
+    static void schedule(Runnable retry) {
+        RETRIES.schedule(retry, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,200 @@
+package com.nearinfinity.examples.zookeeper.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Runs {@link DistributedOperation}s against a single lock path in batches, taking the distributed lock once per
+ * batch instead of once per operation.
+ * <p/>
+ * Submitted operations are queued and picked up by one worker thread. The worker waits up to the batching window for
+ * more operations to arrive, acquires the lock, picks up anything else that queued while it was waiting for the lock,
+ * runs the whole batch in submission order and releases the lock. Each caller gets its own {@link Future}, and an
+ * operation which throws only fails its own future. With the default window of zero nothing is delayed when the
+ * executor is idle, while under load everything that queues up during one batch is run under the next acquisition.
+ */
+public class BatchingOperationExecutor {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    public static final List<ACL> DEFAULT_ACL = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+    private final String _name;
+    private final String _lockPath;
+    private final BlockingWriteLock _lock;
+    private final int _maxBatchSize;
+    private final long _windowNanos;
+    private final BlockingQueue<BatchedOperation<?>> _queue = new LinkedBlockingQueue<BatchedOperation<?>>();
+    private final Thread _worker;
+    private boolean _shutdown;  // guarded by _queue
+
+    // queued by shutdown() behind everything submitted before it
+    private static final BatchedOperation<Void> SHUTDOWN = new BatchedOperation<Void>(null);
+
+    public BatchingOperationExecutor(String name, ZooKeeper zk, String lockPath) {
+        this(name, zk, lockPath, DEFAULT_ACL, DEFAULT_MAX_BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxBatchSize the most operations run under one acquisition of the lock
+     * @param window       how long to wait for more operations after the first one of a batch arrives; zero only
+     *                     batches operations which are already queued
+     */
+    public BatchingOperationExecutor(String name, ZooKeeper zk, String lockPath, List<ACL> acl,
+                                     int maxBatchSize, long window, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1 but was " + maxBatchSize);
+        }
+        _name = name;
+        _lockPath = lockPath;
+        _lock = new BlockingWriteLock(name, zk, lockPath, acl);
+        _maxBatchSize = maxBatchSize;
+        _windowNanos = unit.toNanos(window);
+        _worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBatches();
+            }
+        }, "batching-executor-" + lockPath);
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    public <T> Future<T> submit(DistributedOperation<T> op) {
+        BatchedOperation<T> batched = new BatchedOperation<T>(op);
+        synchronized (_queue) {
+            if (_shutdown) {
+                throw new RejectedExecutionException("Batching executor for " + _lockPath + " has been shut down");
+            }
+            _queue.add(batched);
+        }
+        return batched;
+    }
+
+    /**
+     * Stops accepting operations. Operations already submitted are still run, after which the worker exits.
+     */
+    public void shutdown() {
+        synchronized (_queue) {
+            if (!_shutdown) {
+                _shutdown = true;
+                _queue.add(SHUTDOWN);
+            }
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        _worker.join(Math.max(1, unit.toMillis(timeout)));
+        return !_worker.isAlive();
+    }
+
+    private void runBatches() {
+        List<BatchedOperation<?>> batch = new ArrayList<BatchedOperation<?>>(_maxBatchSize);
+        try {
+            boolean more = true;
+            while (more) {
+                more = add(batch, _queue.take()) && collect(batch);
+                if (!batch.isEmpty()) {
+                    more &= runBatch(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the worker was interrupted, cancel everything it has not run
+            _queue.drainTo(batch);
+            for (BatchedOperation<?> op : batch) {
+                op.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return false once the shutdown marker is reached
+     */
+    private boolean collect(List<BatchedOperation<?>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + _windowNanos;
+        while (batch.size() < _maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            BatchedOperation<?> op = remaining > 0 ? _queue.poll(remaining, TimeUnit.NANOSECONDS) : _queue.poll();
+            if (op == null) {
+                return true;
+            }
+            if (!add(batch, op)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the shutdown marker was picked up along with the batch
+     */
+    private boolean runBatch(List<BatchedOperation<?>> batch) throws InterruptedException {
+        try {
+            _lock.lock();
+        } catch (KeeperException e) {
+            failAll(batch, e);
+            return true;
+        } catch (RuntimeException e) {
+            failAll(batch, e);
+            return true;
+        }
+        boolean more = true;
+        try {
+            // whatever queued while we were waiting for the lock rides along with this batch
+            BatchedOperation<?> op;
+            while (more && batch.size() < _maxBatchSize && (op = _queue.poll()) != null) {
+                more = add(batch, op);
+            }
+            System.out.printf("%s running %d operations under one lock on %s\n", _name, batch.size(), _lockPath);
+            for (BatchedOperation<?> batched : batch) {
+                batched.run();
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return more;
+    }
+
+    private static boolean add(List<BatchedOperation<?>> batch, BatchedOperation<?> op) {
+        if (op == SHUTDOWN) {
+            return false;
+        }
+        batch.add(op);
+        return true;
+    }
+
+    private static void failAll(List<BatchedOperation<?>> batch, Exception e) {
+        for (BatchedOperation<?> op : batch) {
+            op.fail(e);
+        }
+    }
+
+    static class BatchedOperation<T> extends FutureTask<T> {
+
+        BatchedOperation(final DistributedOperation<T> op) {
+            super(new Callable<T>() {
+                @Override
+                public T call() {
+                    return op.execute();
+                }
+            });
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+}
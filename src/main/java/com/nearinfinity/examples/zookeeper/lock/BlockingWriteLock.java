@@ -1,22 +1,37 @@
 package com.nearinfinity.examples.zookeeper.lock;
 
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.recipes.lock.ConnectionStateMonitor;
 import org.apache.zookeeper.recipes.lock.LockListener;
+import org.apache.zookeeper.recipes.lock.LockMetrics;
 import org.apache.zookeeper.recipes.lock.WriteLock;
 
+/**
+ * A blocking, reentrant wrapper around {@link WriteLock}.
+ * <p/>
+ * The thread holding the lock can lock it again without creating another znode; it has to unlock it as many times
+ * as it locked it before the znode is deleted. Other threads in the same JVM wait locally for the holder to finish.
+ * The same instance can be locked and unlocked any number of times.
+ * <p/>
+ * A thread waiting for the lock can be interrupted, or cancelled from another thread with {@link #cancel()}. Either
+ * way its znode is deleted before it returns, so nothing is left in the queue.
+ */
 public class BlockingWriteLock {
 
     private String _name;
     private String _path;
     private WriteLock _writeLock;
-    private CountDownLatch _lockAcquiredSignal = new CountDownLatch(1);
+    private final ReentrantLock _localLock = new ReentrantLock();
+    private final AcquiredSignal _lockAcquiredSignal = new AcquiredSignal();
 
     public static final List<ACL> DEFAULT_ACL = ZooDefs.Ids.OPEN_ACL_UNSAFE;
 
@@ -27,35 +42,222 @@ public class BlockingWriteLock {
     public BlockingWriteLock(String name, ZooKeeper zookeeper, String path, List<ACL> acl) {
         _name = name;
         _path = path;
-        _writeLock = new WriteLock(zookeeper, path, acl, new SyncLockListener());
+        _writeLock = new WriteLock(zookeeper, path, acl);
     }
 
+    /**
+     * Waits for the lock.
+     *
+     * @throws CancellationException if the wait was cancelled with {@link #cancel()}
+     */
     public void lock() throws InterruptedException, KeeperException {
+        _localLock.lockInterruptibly();
+        if (_localLock.getHoldCount() > 1) {
+            return;
+        }
         System.out.printf("%s requesting lock on %s...\n", _name, _path);
-        _writeLock.lock();
-        _lockAcquiredSignal.await();
+        boolean acquired = false;
+        try {
+            listenFor(_lockAcquiredSignal.start());
+            _writeLock.lock();
+            _lockAcquiredSignal.await();
+            acquired = true;
+        } finally {
+            _lockAcquiredSignal.finish();
+            if (!acquired) {
+                abandon();
+            }
+        }
     }
 
+    /**
+     * Waits up to the given timeout for the lock. If it is not acquired in time the request is withdrawn, so a timed
+     * out caller does not need to call {@link #unlock()}.
+     *
+     * @throws CancellationException if the wait was cancelled with {@link #cancel()}
+     */
     public boolean lock(long timeout, TimeUnit unit) throws InterruptedException, KeeperException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!_localLock.tryLock(timeout, unit)) {
+            return false;
+        }
+        if (_localLock.getHoldCount() > 1) {
+            return true;
+        }
         System.out.printf("%s requesting lock on %s with timeout %d %s...\n", _name, _path, timeout, unit.name());
-        _writeLock.lock();
-        return _lockAcquiredSignal.await(timeout, unit);
+        boolean acquired = false;
+        try {
+            listenFor(_lockAcquiredSignal.start());
+            _writeLock.lock();
+            acquired = _lockAcquiredSignal.await(deadline - System.nanoTime());
+            return acquired;
+        } finally {
+            _lockAcquiredSignal.finish();
+            if (!acquired) {
+                abandon();
+            }
+        }
     }
 
+    /**
+     * Acquires the lock only if it is free, without waiting for it. Costs a single round trip of latency, and leaves
+     * nothing in the queue if the lock is taken. Another thread of this JVM holding the lock counts as taken.
+     */
     public boolean tryLock() throws InterruptedException, KeeperException {
-        return lock(1, TimeUnit.SECONDS);
+        if (!_localLock.tryLock()) {
+            return false;
+        }
+        if (_localLock.getHoldCount() > 1) {
+            return true;
+        }
+        System.out.printf("%s trying lock on %s...\n", _name, _path);
+        boolean acquired = false;
+        try {
+            listenFor(_lockAcquiredSignal.reset());
+            acquired = _writeLock.tryLock();
+            return acquired;
+        } finally {
+            if (!acquired) {
+                _localLock.unlock();
+            }
+        }
     }
 
+    /**
+     * Releases one hold on the lock, deleting the znode once the current thread has released every hold it has.
+     * Does nothing if the current thread does not hold the lock.
+     */
     public void unlock() {
-        _writeLock.unlock();
+        if (!_localLock.isHeldByCurrentThread()) {
+            return;
+        }
+        try {
+            if (_localLock.getHoldCount() == 1) {
+                _writeLock.unlock();
+            }
+        } finally {
+            _localLock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a {@link #lock()} or {@link #lock(long, TimeUnit)} call waiting for the lock in another thread. The
+     * request is withdrawn straight away, even while the waiting thread is still retrying after a connection loss or
+     * waiting for the client to reconnect, and the waiting thread throws a {@link CancellationException}. A znode
+     * whose delete fails while disconnected goes with the session. A lock which has already been acquired is not
+     * affected.
+     *
+     * @return true if a waiting call was cancelled
+     */
+    public boolean cancel() {
+        boolean cancelled = _lockAcquiredSignal.cancel();
+        if (cancelled) {
+            System.out.printf("Lock request by %s on %s cancelled\n", _name, _path);
+            try {
+                // also wakes the waiting thread if it is between retries
+                _writeLock.unlock();
+            } catch (RuntimeException e) {
+                System.out.printf("Could not withdraw lock request by %s on %s: %s\n", _name, _path, e);
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Returns how many times the current thread has locked this lock without unlocking it.
+     */
+    public int getHoldCount() {
+        return _localLock.getHoldCount();
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return _localLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Returns a token which increases with every acquisition of the lock, for downstream stores to reject writes
+     * from a stale holder, or -1 if the lock is not held. See {@link WriteLock#getFencingToken()}.
+     */
+    public long getFencingToken() {
+        return _writeLock.getFencingToken();
+    }
+
+    /**
+     * Sets how long after acquiring the lock the holder should consider it expired. Zero or less means no lease.
+     */
+    public void setLeaseDuration(long duration, TimeUnit unit) {
+        _writeLock.setLeaseDuration(duration, unit);
+    }
+
+    /**
+     * Returns true if the lock is held and its lease has not run out, without asking ZooKeeper.
+     */
+    public boolean isLeaseValid() {
+        return _writeLock.isLeaseValid();
+    }
+
+    /**
+     * Returns true if the lock is held, the connection is not suspended and the lease has not run out, without
+     * asking ZooKeeper. Connection state is only tracked with a monitor set through
+     * {@link #setConnectionStateMonitor(ConnectionStateMonitor)}.
+     */
+    public boolean isOwnershipValid() {
+        return _writeLock.isOwnershipValid();
+    }
+
+    public void setConnectionStateMonitor(ConnectionStateMonitor monitor) {
+        _writeLock.setConnectionStateMonitor(monitor);
+    }
+
+    /**
+     * Sets where the contention metrics of the lock go; null, the default, keeps none. Time spent waiting behind
+     * another thread of this JVM is not part of the acquire latency, as that thread already holds the lock.
+     */
+    public void setLockMetrics(LockMetrics lockMetrics) {
+        _writeLock.setLockMetrics(lockMetrics);
+    }
+
+    /**
+     * Sets the executor the acquisition of the lock is reported on; null, the default, uses a shared one. See
+     * {@link WriteLock#setCallbackExecutor(Executor)}.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        _writeLock.setCallbackExecutor(callbackExecutor);
+    }
+
+    /**
+     * Sets a listener which only signals the given attempt. The listener is called on the callback executor, so the
+     * acquisition of an attempt which has since timed out or been cancelled may still be reported after the next
+     * attempt has started, and must not count for it.
+     */
+    private void listenFor(int attempt) {
+        _writeLock.setLockListener(new SyncLockListener(attempt));
+    }
+
+    private void abandon() {
+        try {
+            _writeLock.unlock();
+        } finally {
+            _localLock.unlock();
+        }
     }
 
     class SyncLockListener implements LockListener {
 
+        private final int _attempt;
+
+        SyncLockListener(int attempt) {
+            _attempt = attempt;
+        }
+
         @Override
         public void lockAcquired() {
             System.out.printf("Lock acquired by %s on %s\n", _name, _path);
-            _lockAcquiredSignal.countDown();
+            // the listener is read when the callback is queued, which can race with the next attempt setting its own,
+            // so a stale acquisition may still carry the current attempt; it only counts if the lock is held now
+            if (_writeLock.isOwner()) {
+                _lockAcquiredSignal.signal(_attempt);
+            }
         }
 
         @Override
@@ -63,4 +265,87 @@ public class BlockingWriteLock {
             System.out.printf("Lock released by %s on %s\n", _name, _path);
         }
     }
+
+    /**
+     * A resettable replacement for a one-shot CountDownLatch, so the lock can be acquired again after it has been
+     * released. Every reset starts a new attempt, and a signal only counts for the attempt it was meant for. A wait
+     * between {@link #start()} and {@link #finish()} can be cancelled, and once cancelled it stays cancelled even if
+     * the lock is acquired before the waiter wakes up, as the canceller has been told it worked.
+     */
+    static class AcquiredSignal {
+
+        private int _attempt;
+        private boolean _acquired;
+        private boolean _waiting;
+        private boolean _cancelled;
+
+        /**
+         * @return the number of the new attempt, to pass to {@link #signal(int)}
+         */
+        synchronized int reset() {
+            _attempt++;
+            _acquired = false;
+            _cancelled = false;
+            return _attempt;
+        }
+
+        /**
+         * Resets the signal for a wait which may be cancelled
+         *
+         * @return the number of the new attempt, to pass to {@link #signal(int)}
+         */
+        synchronized int start() {
+            _waiting = true;
+            return reset();
+        }
+
+        synchronized void finish() {
+            _waiting = false;
+        }
+
+        /**
+         * Signals that the given attempt acquired the lock; does nothing if a later attempt has started since
+         */
+        synchronized void signal(int attempt) {
+            if (attempt != _attempt) {
+                return;
+            }
+            _acquired = true;
+            notifyAll();
+        }
+
+        synchronized boolean cancel() {
+            if (!_waiting || _acquired || _cancelled) {
+                return false;
+            }
+            _cancelled = true;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!isAcquired()) {
+                wait();
+            }
+        }
+
+        synchronized boolean await(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!isAcquired()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        private boolean isAcquired() {
+            if (_cancelled) {
+                throw new CancellationException("Lock request was cancelled");
+            }
+            return _acquired;
+        }
+    }
 }
@@ -7,17 +7,49 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.recipes.lock.LockMetrics;
 
+/**
+ * Runs {@link DistributedOperation}s while holding a distributed lock. Threads using the same executor and lock path
+ * are coalesced in a {@link LocalLockTable}, so they queue locally and only one znode per lock path contends in
+ * ZooKeeper on their behalf.
+ */
 public class DistributedOperationExecutor {
 
-    private ZooKeeper _zk;
+    private LocalLockTable _localLocks;
 
     public DistributedOperationExecutor(ZooKeeper zk) {
-        _zk = zk;
+        this(zk, LocalLockTable.DEFAULT_MAX_LOCAL_HANDOFFS);
+    }
+
+    /**
+     * @param maxLocalHandoffs how many times in a row the distributed lock may be handed from one local thread to
+     *                         the next before it is released to give other processes a turn
+     */
+    public DistributedOperationExecutor(ZooKeeper zk, int maxLocalHandoffs) {
+        _localLocks = new LocalLockTable(zk, maxLocalHandoffs);
+    }
+
+    /**
+     * @param leaseDuration how long after acquiring a lock it is considered held; an operation still running when
+     *                      the lease runs out is reported in {@link DistributedOperationResult#leaseExpired}, and the
+     *                      lock is not handed to another local thread after that
+     */
+    public DistributedOperationExecutor(ZooKeeper zk, int maxLocalHandoffs, long leaseDuration, TimeUnit unit) {
+        _localLocks = new LocalLockTable(zk, maxLocalHandoffs, unit.toNanos(leaseDuration));
     }
 
     public static final List<ACL> DEFAULT_ACL = ZooDefs.Ids.OPEN_ACL_UNSAFE;
 
+    /**
+     * Sets where the contention metrics of the distributed locks go, for example a
+     * {@link org.apache.zookeeper.recipes.lock.LockStats} registered with JMX. Acquire latency and hold time are
+     * those of the distributed lock, which can span several local handoffs. Null, the default, keeps none.
+     */
+    public void setLockMetrics(LockMetrics lockMetrics) {
+        _localLocks.setLockMetrics(lockMetrics);
+    }
+
     public <T> T withLock(String name, String lockPath, DistributedOperation<T> op)
             throws InterruptedException, KeeperException {
         return withLockInternal(name, lockPath, DEFAULT_ACL, op);
@@ -42,27 +74,26 @@ public class DistributedOperationExecutor {
 
     private <T> T withLockInternal(String name, String lockPath, List<ACL> acl, DistributedOperation<T> op)
             throws InterruptedException, KeeperException {
-        BlockingWriteLock lock = new BlockingWriteLock(name, _zk, lockPath, acl);
+        LocalLockTable.PathLock lock = _localLocks.lock(name, lockPath, acl);
         try {
-            lock.lock();
             return op.execute();
         } finally {
-            lock.unlock();
+            _localLocks.unlock(lock);
         }
     }
 
     private <T> DistributedOperationResult<T> withLockInternal(String name, String lockPath, List<ACL> acl,
                                                                DistributedOperation<T> op, long timeout, TimeUnit unit)
             throws InterruptedException, KeeperException {
-        BlockingWriteLock lock = new BlockingWriteLock(name, _zk, lockPath, acl);
-        try {
-            boolean lockObtained = lock.lock(timeout, unit);
-            if (lockObtained) {
-                return new DistributedOperationResult<T>(false, op.execute());
-            }
+        LocalLockTable.PathLock lock = _localLocks.tryLock(name, lockPath, acl, timeout, unit);
+        if (lock == null) {
             return new DistributedOperationResult<T>(true, null);
+        }
+        try {
+            T result = op.execute();
+            return new DistributedOperationResult<T>(false, result, lock.getFencingToken(), lock.isLeaseExpired());
         } finally {
-            lock.unlock();
+            _localLocks.unlock(lock);
         }
     }
 
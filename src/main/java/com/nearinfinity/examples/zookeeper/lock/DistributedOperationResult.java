@@ -4,9 +4,24 @@ public class DistributedOperationResult<T> {
 
     public final boolean timedOut;
     public final T result;
+    /**
+     * The fencing token of the lock the operation ran under, or -1 if it timed out.
+     */
+    public final long fencingToken;
+    /**
+     * True if the lease on the lock ran out before the operation finished, so the lock can no longer be relied on
+     * to have been held throughout, e.g. because the session expired during a long pause.
+     */
+    public final boolean leaseExpired;
 
     public DistributedOperationResult(boolean timedOut, T result) {
+        this(timedOut, result, -1, false);
+    }
+
+    public DistributedOperationResult(boolean timedOut, T result, long fencingToken, boolean leaseExpired) {
         this.timedOut = timedOut;
         this.result = result;
+        this.fencingToken = fencingToken;
+        this.leaseExpired = leaseExpired;
     }
 }
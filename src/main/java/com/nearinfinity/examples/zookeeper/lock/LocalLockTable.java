@@ -0,0 +1,294 @@
+package com.nearinfinity.examples.zookeeper.lock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.recipes.lock.AsyncWriteLock;
+import org.apache.zookeeper.recipes.lock.LockFuture;
+import org.apache.zookeeper.recipes.lock.LockMetrics;
+
+/**
+ * A JVM-local table of the distributed locks taken through one {@link ZooKeeper} session, keyed by lock path.
+ * <p/>
+ * Threads wanting the same lock path first queue on a fair in-process lock, so only one znode per path and JVM ever
+ * contends in ZooKeeper. When a thread is done and another local thread is already queued behind it, the distributed
+ * lock is handed straight over instead of being deleted and re-created. After {@code maxLocalHandoffs} handoffs in a
+ * row the distributed lock is released anyway so that other processes get their turn. It is also released, rather
+ * than handed over, once its lease has run out or the session is no longer connected, as the lock may have been lost
+ * with the session; the next thread then requests it afresh.
+ */
+class LocalLockTable {
+
+    static final int DEFAULT_MAX_LOCAL_HANDOFFS = 16;
+
+    private final ZooKeeper _zk;
+    private final int _maxLocalHandoffs;
+    private final long _leaseNanos;
+    private final Map<String, PathLock> _pathLocks = new HashMap<String, PathLock>();
+    private volatile LockMetrics _lockMetrics;
+
+    LocalLockTable(ZooKeeper zk, int maxLocalHandoffs) {
+        this(zk, maxLocalHandoffs, 0);
+    }
+
+    /**
+     * @param leaseNanos how long a distributed lock is considered held after it was acquired; zero or less for no
+     *                   lease
+     */
+    LocalLockTable(ZooKeeper zk, int maxLocalHandoffs, long leaseNanos) {
+        _zk = zk;
+        _maxLocalHandoffs = maxLocalHandoffs;
+        _leaseNanos = leaseNanos;
+    }
+
+    /**
+     * Sets where the metrics of the distributed locks taken from now on go; null keeps none.
+     */
+    void setLockMetrics(LockMetrics lockMetrics) {
+        _lockMetrics = lockMetrics;
+    }
+
+    PathLock lock(String name, String lockPath, List<ACL> acl) throws InterruptedException, KeeperException {
+        PathLock pathLock = reference(lockPath);
+        boolean locked = false;
+        try {
+            pathLock.lock(name, acl);
+            locked = true;
+            return pathLock;
+        } finally {
+            if (!locked) {
+                dereference(pathLock);
+            }
+        }
+    }
+
+    /**
+     * @return the locked path lock, or null if it could not be locked within the timeout
+     */
+    PathLock tryLock(String name, String lockPath, List<ACL> acl, long timeout, TimeUnit unit)
+            throws InterruptedException, KeeperException {
+        PathLock pathLock = reference(lockPath);
+        boolean locked = false;
+        try {
+            locked = pathLock.tryLock(name, acl, timeout, unit);
+            return locked ? pathLock : null;
+        } finally {
+            if (!locked) {
+                dereference(pathLock);
+            }
+        }
+    }
+
+    void unlock(PathLock pathLock) {
+        try {
+            pathLock.unlock();
+        } finally {
+            dereference(pathLock);
+        }
+    }
+
+    private PathLock reference(String lockPath) {
+        synchronized (_pathLocks) {
+            PathLock pathLock = _pathLocks.get(lockPath);
+            if (pathLock == null) {
+                pathLock = new PathLock(lockPath);
+                _pathLocks.put(lockPath, pathLock);
+            }
+            pathLock._references++;
+            return pathLock;
+        }
+    }
+
+    private void dereference(PathLock pathLock) {
+        synchronized (_pathLocks) {
+            if (--pathLock._references > 0) {
+                return;
+            }
+            _pathLocks.remove(pathLock._lockPath);
+        }
+        // A waiter which timed out can leave a handed-over distributed lock behind with nobody left to use it
+        pathLock.releaseAbandoned();
+    }
+
+    class PathLock {
+
+        private final String _lockPath;
+        private final ReentrantLock _localLock = new ReentrantLock(true);
+        private int _references;  // guarded by _pathLocks
+        // a LockFuture rather than a BlockingWriteLock, which belongs to the thread that locked it, so the distributed
+        // lock can be handed from one thread to another
+        private LockFuture _distributedLock;  // guarded by _localLock
+        private int _handoffs;  // guarded by _localLock
+        private long _acquiredAt;  // guarded by _localLock
+
+        PathLock(String lockPath) {
+            _lockPath = lockPath;
+        }
+
+        void lock(String name, List<ACL> acl) throws InterruptedException, KeeperException {
+            _localLock.lockInterruptibly();
+            boolean acquired = false;
+            try {
+                releaseIfInvalid();
+                if (_distributedLock != null) {
+                    countHandoff();
+                } else {
+                    System.out.printf("%s requesting lock on %s...\n", name, _lockPath);
+                    LockFuture distributedLock = requestDistributedLock(acl);
+                    try {
+                        awaitQuietly(distributedLock);
+                        acquired(distributedLock);
+                    } finally {
+                        if (_distributedLock != distributedLock) {
+                            distributedLock.unlock();
+                        }
+                    }
+                }
+                acquired = true;
+            } finally {
+                if (!acquired) {
+                    _localLock.unlock();
+                }
+            }
+        }
+
+        boolean tryLock(String name, List<ACL> acl, long timeout, TimeUnit unit)
+                throws InterruptedException, KeeperException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!_localLock.tryLock(timeout, unit)) {
+                return false;
+            }
+            boolean acquired = false;
+            try {
+                releaseIfInvalid();
+                if (_distributedLock != null) {
+                    countHandoff();
+                    acquired = true;
+                } else {
+                    System.out.printf("%s requesting lock on %s with timeout %d %s...\n",
+                            name, _lockPath, timeout, unit.name());
+                    LockFuture distributedLock = requestDistributedLock(acl);
+                    try {
+                        acquired = awaitQuietly(distributedLock, deadline - System.nanoTime());
+                    } finally {
+                        if (acquired) {
+                            acquired(distributedLock);
+                        } else {
+                            distributedLock.unlock();
+                        }
+                    }
+                }
+                return acquired;
+            } finally {
+                if (!acquired) {
+                    _localLock.unlock();
+                }
+            }
+        }
+
+        void unlock() {
+            try {
+                boolean outermost = _localLock.getHoldCount() == 1;
+                if (outermost && (!_localLock.hasQueuedThreads() || _handoffs >= _maxLocalHandoffs
+                        || isLeaseExpired())) {
+                    releaseDistributedLock();
+                }
+            } finally {
+                _localLock.unlock();
+            }
+        }
+
+        /**
+         * @return the fencing token of the distributed lock held by the current thread
+         */
+        long getFencingToken() {
+            return _distributedLock.getFencingToken();
+        }
+
+        boolean isLeaseExpired() {
+            return _leaseNanos > 0 && System.nanoTime() - _acquiredAt >= _leaseNanos;
+        }
+
+        private LockFuture requestDistributedLock(List<ACL> acl) {
+            AsyncWriteLock distributedLock = new AsyncWriteLock(_zk, _lockPath, acl);
+            distributedLock.setLockMetrics(_lockMetrics);
+            return distributedLock.lock();
+        }
+
+        private void acquired(LockFuture distributedLock) {
+            _distributedLock = distributedLock;
+            _handoffs = 0;
+            _acquiredAt = System.nanoTime();
+        }
+
+        /**
+         * Releases a distributed lock handed over by another thread if it can no longer be relied on
+         */
+        private void releaseIfInvalid() {
+            // a thread taking the same lock again while it holds it keeps what it has
+            if (_distributedLock != null && _localLock.getHoldCount() == 1
+                    && (!_zk.getState().isConnected() || isLeaseExpired())) {
+                releaseDistributedLock();
+            }
+        }
+
+        private void countHandoff() {
+            // a thread taking the same lock again while it holds it is not a handoff
+            if (_localLock.getHoldCount() == 1) {
+                _handoffs++;
+            }
+        }
+
+        private void releaseAbandoned() {
+            _localLock.lock();
+            try {
+                releaseDistributedLock();
+            } finally {
+                _localLock.unlock();
+            }
+        }
+
+        private void releaseDistributedLock() {
+            if (_distributedLock != null) {
+                LockFuture distributedLock = _distributedLock;
+                _distributedLock = null;
+                distributedLock.unlock();
+            }
+        }
+    }
+
+    private static void awaitQuietly(LockFuture distributedLock) throws InterruptedException, KeeperException {
+        try {
+            distributedLock.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static boolean awaitQuietly(LockFuture distributedLock, long timeoutNanos)
+            throws InterruptedException, KeeperException {
+        try {
+            distributedLock.get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static KeeperException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof KeeperException) {
+            return (KeeperException) e.getCause();
+        }
+        throw new DistributedOperationException(e.getCause());
+    }
+}
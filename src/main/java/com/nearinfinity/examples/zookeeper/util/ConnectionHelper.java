@@ -12,10 +12,21 @@ public class ConnectionHelper {
     public static final int DEFAULT_SESSION_TIMEOUT = 5000;
 
     public ZooKeeper connect(String hosts, int sessionTimeout) throws IOException, InterruptedException {
+        return connect(hosts, sessionTimeout, null);
+    }
+
+    /**
+     * Connects and keeps passing the session's events on to the given watcher, e.g. a ConnectionStateMonitor.
+     */
+    public ZooKeeper connect(String hosts, int sessionTimeout, final Watcher watcher)
+            throws IOException, InterruptedException {
         final CountDownLatch connectedSignal = new CountDownLatch(1);
         ZooKeeper zk = new ZooKeeper(hosts, sessionTimeout, new Watcher() {
             @Override
             public void process(WatchedEvent event) {
+                if (watcher != null) {
+                    watcher.process(event);
+                }
                 if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
                     connectedSignal.countDown();
                 }
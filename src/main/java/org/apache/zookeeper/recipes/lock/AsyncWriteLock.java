@@ -0,0 +1,83 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+
+/**
+ * A non-blocking variant of {@link WriteLock} built entirely on the
+ * asynchronous ZooKeeper API. <p/> Each call to {@link #lock()} enqueues a new
+ * request for the exclusive lock and returns a {@link LockFuture} straight
+ * away; every subsequent step of the protocol runs from ZooKeeper callbacks,
+ * so no caller thread is ever parked while waiting and a single client can
+ * keep any number of requests pending on its event thread. <p/> Requests
+ * made through this class and through {@link WriteLock} on the same directory
+ * exclude each other.
+ *
+ */
+public class AsyncWriteLock extends ProtocolSupport {
+
+    private final String dir;
+    private byte[] data = {0x12, 0x34};
+
+    /**
+     * zookeeper contructor for the async writelock
+     * @param zookeeper zookeeper client instance
+     * @param dir the parent path you want to use for locking
+     * @param acl the acl that you want to use for all the paths,
+     * if null world read/write is used.
+     */
+    public AsyncWriteLock(ZooKeeper zookeeper, String dir, List<ACL> acl) {
+        super(zookeeper);
+        this.dir = dir;
+        if (acl != null) {
+            setAcl(acl);
+        }
+    }
+
+    /**
+     * Enqueues a request for the exclusive lock without blocking
+     * @return the handle on the request
+     */
+    public LockFuture lock() {
+        return lock(null);
+    }
+
+    /**
+     * Enqueues a request for the exclusive lock without blocking
+     * @param callback notified on the callback executor when the
+     * lock is acquired and released; may be null
+     * @return the handle on the request
+     */
+    public LockFuture lock(LockListener callback) {
+        LockRequest request = new LockRequest(this, dir, data, uniquePrefix(), null, callback);
+        request.start();
+        return request;
+    }
+
+    /**
+     * return the parent dir for lock
+     * @return the parent dir used for locks.
+     */
+    public String getDir() {
+        return dir;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the connection state of a ZooKeeper session from the state events
+ * delivered to it, so that {@link ProtocolSupport} can retry an operation
+ * which failed with connection loss as soon as the client reconnects rather
+ * than sleeping for a fixed delay. <p/> Install it as the default watcher of
+ * the ZooKeeper client, or forward the events of an existing default
+ * watcher to it; every event is also passed on to the delegate watcher, if
+ * there is one. <p/> A monitor created before its client starts out
+ * disconnected until the first state event; one attached to a client which
+ * already exists should be given the client so it starts from its state.
+ *
+ */
+public class ConnectionStateMonitor implements Watcher {
+    private final Watcher delegate;
+    private final List<Watcher> stateListeners = new CopyOnWriteArrayList<Watcher>();
+    private boolean connected;
+    private boolean expired;
+
+    public ConnectionStateMonitor() {
+        this(null);
+    }
+
+    /**
+     * @param delegate the watcher every event is passed on to; may be null
+     */
+    public ConnectionStateMonitor(Watcher delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Creates a monitor for a client which already exists, starting from
+     * the client's current state rather than waiting for its next state
+     * event.
+     * @param zookeeper the client whose events will be forwarded
+     * @param delegate the watcher every event is passed on to; may be null
+     */
+    public ConnectionStateMonitor(ZooKeeper zookeeper, Watcher delegate) {
+        this.delegate = delegate;
+        ZooKeeper.States state = zookeeper.getState();
+        this.connected = state.isConnected();
+        this.expired = !state.isAlive();
+    }
+
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            stateChanged(event.getState());
+            for (Watcher listener : stateListeners) {
+                listener.process(event);
+            }
+        }
+        if (delegate != null) {
+            delegate.process(event);
+        }
+    }
+
+    /**
+     * Registers a watcher to be told about every state event
+     * @param listener the watcher
+     */
+    public void addStateListener(Watcher listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(Watcher listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Returns true if the last state event said the client is connected
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns true if the last state event said the session has expired or
+     * authentication failed, so the client will not connect again
+     */
+    public synchronized boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Waits until the client is connected, the session has expired or the
+     * timeout runs out, whichever comes first. Returns at once if the client
+     * is already connected.
+     * @param timeoutMillis the longest time to wait
+     * @return true if the client is connected
+     */
+    public synchronized boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!connected && !expired) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return connected;
+    }
+
+    private synchronized void stateChanged(KeeperState state) {
+        switch (state) {
+            case SyncConnected:
+            case ConnectedReadOnly:
+                // possibly a new session after an expiry
+                connected = true;
+                expired = false;
+                break;
+            case Disconnected:
+                connected = false;
+                break;
+            case Expired:
+            case AuthFailed:
+                connected = false;
+                expired = true;
+                break;
+            default:
+                // e.g. SaslAuthenticated, which does not change the connection
+                return;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.Random;
+
+/**
+ * A {@link RetryPolicy} backing off exponentially with decorrelated jitter.
+ * <p/> Each delay is picked at random between the base delay and three times
+ * the previous delay, capped at the maximum delay. Clients which lost their
+ * connection at the same moment, such as during a leader election, spread
+ * their retries out instead of retrying in lockstep. <p/> Retries stop after
+ * the maximum number of attempts, or when the next delay would take the
+ * operation past its time budget.
+ *
+ */
+public class JitteredBackoffRetryPolicy implements RetryPolicy {
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final long budgetMillis;
+    private final Random random = new Random();
+
+    /**
+     * @param baseDelayMillis the shortest delay between attempts
+     * @param maxDelayMillis the longest delay between attempts
+     * @param maxAttempts the most attempts made, the first one included
+     * @param budgetMillis the most time spent on an operation including its
+     * retries, zero or less for no limit
+     */
+    public JitteredBackoffRetryPolicy(long baseDelayMillis, long maxDelayMillis,
+            int maxAttempts, long budgetMillis) {
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Need 0 <= baseDelayMillis <= maxDelayMillis but got " +
+                    baseDelayMillis + " and " + maxDelayMillis);
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+        this.budgetMillis = budgetMillis;
+    }
+
+    public long getDelayBeforeRetry(int retries, long elapsedMillis, long previousDelayMillis) {
+        if (retries + 1 >= maxAttempts) {
+            return STOP;
+        }
+        long previous = Math.max(previousDelayMillis, baseDelayMillis);
+        long upper = Math.min(maxDelayMillis, previous * 3);
+        long delay = baseDelayMillis + nextLong(upper - baseDelayMillis + 1);
+        if (budgetMillis > 0 && elapsedMillis + delay > budgetMillis) {
+            return STOP;
+        }
+        return delay;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    /**
+     * Returns a random long in [0, bound)
+     */
+    private long nextLong(long bound) {
+        if (bound <= Integer.MAX_VALUE) {
+            return random.nextInt((int) bound);
+        }
+        return (long) (random.nextDouble() * bound);
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A handle on a pending lock request. The future completes with the path of
+ * the znode which owns the lock once it has been acquired, and completes
+ * exceptionally if the request could not be carried out. <p/> Completion
+ * listeners can be registered with {@link #addListener(Runnable, Executor)}
+ * so callers never need to block on {@link #get()}. <p/> Calling
+ * {@link #unlock()} releases the lock if it is held, or withdraws the request
+ * from the queue if it is not.
+ *
+ */
+public abstract class LockFuture implements Future<String> {
+    private static final Logger LOG = Logger.getLogger(LockFuture.class);
+
+    private static final int PENDING = 0;
+    private static final int ACQUIRED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+    private int state = PENDING;
+    private String id;
+    private Throwable failure;
+
+    /**
+     * Releases the lock, or withdraws the request if it has not been
+     * acquired yet. Never blocks.
+     */
+    public abstract void unlock();
+
+    /**
+     * Registers a listener to run once this future completes, whether the
+     * lock was acquired, the request failed or it was cancelled. If the future
+     * has already completed the listener is run straight away.
+     * @param listener the listener to run
+     * @param executor the executor to run the listener on
+     */
+    public void addListener(Runnable listener, Executor executor) {
+        Runnable task = new ListenerTask(listener, executor);
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Cancels the request and withdraws its znode from the lock queue; a lock
+     * which has already been acquired is not affected.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(CANCELLED, null, null)) {
+            return false;
+        }
+        unlock();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * Returns true if this request completed by acquiring the lock
+     */
+    public synchronized boolean isAcquired() {
+        return state == ACQUIRED;
+    }
+
+    /**
+     * Returns the fencing token of the acquired lock, as described for
+     * {@link WriteLock#getFencingToken()}
+     * @return the fencing token, or -1 if the lock has not been acquired
+     */
+    public synchronized long getFencingToken() {
+        return state == ACQUIRED ? ZNodeName.fencingToken(id) : -1;
+    }
+
+    public String get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    public String get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Lock not acquired within " + timeout + " " + unit);
+        }
+        return report();
+    }
+
+    /**
+     * Completes this future with the id of the znode which now owns the lock
+     * @return true if this call completed the future
+     */
+    protected boolean set(String id) {
+        return complete(ACQUIRED, id, null);
+    }
+
+    /**
+     * Completes this future exceptionally
+     * @return true if this call completed the future
+     */
+    protected boolean setException(Throwable failure) {
+        return complete(FAILED, null, failure);
+    }
+
+    private boolean complete(int newState, String id, Throwable failure) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.state = newState;
+            this.id = id;
+            this.failure = failure;
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        done.countDown();
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+        return true;
+    }
+
+    private synchronized String report() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(failure);
+        }
+        return id;
+    }
+
+    private static class ListenerTask implements Runnable {
+        private final Runnable listener;
+        private final Executor executor;
+
+        ListenerTask(Runnable listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        public void run() {
+            try {
+                executor.execute(listener);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to run listener: " + e, e);
+            }
+        }
+    }
+}
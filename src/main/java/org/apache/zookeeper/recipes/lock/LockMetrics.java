@@ -0,0 +1,60 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * Receives the contention metrics of a lock. <p/> Set an implementation on
+ * a lock to record or forward them anywhere; {@link LockStats} keeps them
+ * in memory and publishes them through JMX. A lock without metrics does no
+ * extra work at all. Methods may be called from any thread, including the
+ * ZooKeeper event thread, so they should return quickly.
+ *
+ */
+public interface LockMetrics {
+
+    /**
+     * call back called when a request acquires the lock
+     * @param waitNanos how long it took from the request to the acquisition
+     */
+    void lockAcquired(long waitNanos);
+
+    /**
+     * call back called when an owner releases the lock
+     * @param holdNanos how long the lock was held
+     */
+    void lockReleased(long holdNanos);
+
+    /**
+     * call back called each time a request looks at the queue of the lock
+     * @param position the number of requests ahead of this one, zero for
+     * the owner
+     * @param depth the number of requests in the queue, this one included
+     */
+    void queued(int position, int depth);
+
+    /**
+     * call back called each time an operation is retried after a
+     * connection loss
+     */
+    void retried();
+
+    /**
+     * call back called each time the watch on a predecessor fires
+     */
+    void watchFired();
+}
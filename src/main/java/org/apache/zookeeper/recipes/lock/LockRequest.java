@@ -0,0 +1,468 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import static org.apache.zookeeper.CreateMode.EPHEMERAL_SEQUENTIAL;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+
+/**
+ * A single request for a lock which drives itself through the
+ * create / list / watch-predecessor protocol from ZooKeeper callbacks. <p/>
+ * Znodes whose names start with the compatible prefix given to the request
+ * never block it, which is how shared requests let each other through.
+ * <p/> A step failing with connection loss is retried after the delay of
+ * the protocol's retry policy, without blocking any thread meanwhile, and
+ * counts towards the circuit breaker and the retry metrics as the retries
+ * of {@link ProtocolSupport#retryOperation(ZooKeeperOperation)} do.
+ *
+ */
+class LockRequest extends LockFuture implements AsyncCallback.StringCallback,
+        AsyncCallback.ChildrenCallback, AsyncCallback.StatCallback, Watcher {
+    private static final Logger LOG = Logger.getLogger(LockRequest.class);
+    private static final Object PIPELINED = new Object();
+
+    private final ProtocolSupport protocol;
+    private final ZooKeeper zookeeper;
+    private final String dir;
+    private final byte[] data;
+    private final String prefix;
+    private final String compatiblePrefix;
+    private final LockListener callback;
+    // only ever used from the event thread
+    private final PredecessorFinder finder = new PredecessorFinder();
+    // the predecessor being watched and whether it was the last znode
+    // blocking us, also only used from the event thread
+    private String watched;
+    private boolean watchedLastBlocker;
+    private int watchedQueuePosition;
+    private int watchedQueueDepth;
+    private String id;
+    private boolean released;
+    // retries of the current run of connection losses, with when it
+    // started and the last delay, as the retry policy wants them; only
+    // used from the event thread
+    private int attempts;
+    private long retriesStartedAt;
+    private long retryDelay;
+    // every retry made for this request, for the retry metrics
+    private volatile int retries;
+    private boolean finished;
+    private volatile long requestedAt;
+    private volatile long acquiredAt;
+    private final Runnable listTask = new Runnable() {
+        public void run() {
+            list();
+        }
+    };
+
+    /**
+     * @param protocol the lock the request is made through
+     * @param dir the parent path used for locking
+     * @param data the data to store in our znode
+     * @param prefix the unique prefix for our znode
+     * @param compatiblePrefix the prefix of znodes which do not block this
+     * request, or null if every znode before ours does
+     * @param callback notified when the lock is acquired and released; may
+     * be null
+     */
+    LockRequest(ProtocolSupport protocol, String dir, byte[] data, String prefix,
+            String compatiblePrefix, LockListener callback) {
+        this.protocol = protocol;
+        this.zookeeper = protocol.getZookeeper();
+        this.dir = dir;
+        this.data = data;
+        this.prefix = prefix;
+        this.compatiblePrefix = compatiblePrefix;
+        this.callback = callback;
+    }
+
+    /**
+     * Starts the request off, or cancels it if the lock has been closed
+     */
+    void start() {
+        if (protocol.isClosed()) {
+            cancel(false);
+        } else if (protocol.shortCircuit()) {
+            fail(KeeperException.Code.CONNECTIONLOSS.intValue(), dir, true);
+        } else {
+            requestedAt = System.nanoTime();
+            create();
+        }
+    }
+
+    /**
+     * Sends the create and the listing back to back. ZooKeeper applies a
+     * session's requests in order, so the listing is guaranteed to see the
+     * znode being created and acquisition costs a single round trip of
+     * latency.
+     */
+    void create() {
+        zookeeper.create(dir + "/" + prefix, data, protocol.getAcl(), EPHEMERAL_SEQUENTIAL, this, null);
+        zookeeper.getChildren(dir, false, this, PIPELINED);
+    }
+
+    void list() {
+        zookeeper.getChildren(dir, false, this, null);
+    }
+
+    /**
+     * create callback for our own znode
+     */
+    public void processResult(int rc, String path, Object ctx, String name) {
+        switch (KeeperException.Code.get(rc)) {
+        case OK:
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Created id: " + name);
+            }
+            // the pipelined listing takes it from here
+            adopt(name);
+            break;
+        case NONODE:
+            createDir();
+            break;
+        case CONNECTIONLOSS:
+            // the znode may or may not have been created, so look for it
+            retry(rc, path, listTask);
+            break;
+        default:
+            fail(rc, path);
+        }
+    }
+
+    /**
+     * getChildren callback for the lock dir
+     */
+    public void processResult(int rc, String path, Object ctx, List<String> children) {
+        if (ctx == PIPELINED && !hasId()) {
+            // the create failed or the request was withdrawn; the create
+            // callback, which always runs first, has already dealt with it
+            return;
+        }
+        switch (KeeperException.Code.get(rc)) {
+        case OK:
+            attempts = 0;
+            protocol.attemptSucceeded();
+            checkOwnership(children);
+            break;
+        case NONODE:
+            // the dir has gone so our znode went with it
+            if (forget()) {
+                create();
+            }
+            break;
+        case CONNECTIONLOSS:
+            retry(rc, path, listTask);
+            break;
+        default:
+            fail(rc, path);
+        }
+    }
+
+    /**
+     * exists callback for the predecessor we are watching
+     */
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        switch (KeeperException.Code.get(rc)) {
+        case OK:
+            // the watch is set; wait for the predecessor to go away
+            break;
+        case NONODE:
+            list();
+            break;
+        case CONNECTIONLOSS:
+            retry(rc, path, listTask);
+            break;
+        default:
+            fail(rc, path);
+        }
+    }
+
+    /**
+     * watch on the predecessor
+     */
+    public void process(WatchedEvent event) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Watcher fired on path: " + event.getPath() + " state: " +
+                    event.getState() + " type " + event.getType());
+        }
+        if (event.getType() == Event.EventType.None) {
+            if (event.getState() == Event.KeeperState.Expired) {
+                fail(KeeperException.Code.SESSIONEXPIRED.intValue(), dir);
+            }
+            // otherwise ZooKeeper resets the watch itself once reconnected
+            return;
+        }
+        LockMetrics metrics = protocol.getLockMetrics();
+        if (metrics != null) {
+            metrics.watchFired();
+        }
+        if (event.getType() == Event.EventType.NodeDeleted && watchedLastBlocker
+                && event.getPath().equals(watched)) {
+            // nothing else was ahead of us and anything created since sorts
+            // after us, so the lock is ours without listing the dir again
+            watched = null;
+            String myId;
+            synchronized (this) {
+                if (released || id == null) {
+                    return;
+                }
+                myId = id;
+            }
+            if (metrics != null) {
+                // as last seen, less our predecessor
+                metrics.queued(watchedQueuePosition - 1, watchedQueueDepth - 1);
+            }
+            acquire(myId);
+            return;
+        }
+        list();
+    }
+
+    private void checkOwnership(List<String> children) {
+        String myId;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            myId = id;
+        }
+        if (myId == null) {
+            findOrCreate(children);
+            return;
+        }
+        if (!finder.scan(children, myId, compatiblePrefix)) {
+            LOG.warn("Could not find our id: " + myId + " in: " + dir + " so recreating it");
+            if (forget()) {
+                create();
+            }
+            return;
+        }
+        LockMetrics metrics = protocol.getLockMetrics();
+        if (metrics != null) {
+            metrics.queued(finder.getQueuePosition(), finder.getQueueDepth());
+        }
+        if (finder.getPredecessor() == null) {
+            acquire(myId);
+            return;
+        }
+        String lastChildId = dir + "/" + finder.getPredecessor();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("watching less than me node: " + lastChildId);
+        }
+        watched = lastChildId;
+        watchedLastBlocker = finder.getBlockers() == 1;
+        watchedQueuePosition = finder.getQueuePosition();
+        watchedQueueDepth = finder.getQueueDepth();
+        zookeeper.exists(lastChildId, this, this, null);
+    }
+
+    private void acquire(String myId) {
+        // before set() so an owner releasing straight away sees it
+        acquiredAt = System.nanoTime();
+        if (!set(myId)) {
+            return;
+        }
+        finished(false);
+        LockMetrics metrics = protocol.getLockMetrics();
+        if (metrics != null) {
+            metrics.lockAcquired(acquiredAt - requestedAt);
+        }
+        if (callback != null) {
+            protocol.dispatch(new Runnable() {
+                public void run() {
+                    callback.lockAcquired();
+                }
+            });
+        }
+    }
+
+    /**
+     * Looks for the znode a create lost to connection loss may have made,
+     * creating a new one if there is none
+     */
+    private void findOrCreate(List<String> children) {
+        for (String child : children) {
+            if (child.startsWith(prefix)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Found id created last time: " + child);
+                }
+                if (adopt(dir + "/" + child)) {
+                    checkOwnership(children);
+                }
+                return;
+            }
+        }
+        create();
+    }
+
+    private void createDir() {
+        zookeeper.create(dir, null, protocol.getAcl(), CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+            public void processResult(int rc, String path, Object ctx, String name) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS) {
+                    create();
+                } else if (code == KeeperException.Code.CONNECTIONLOSS) {
+                    retry(rc, path, new Runnable() {
+                        public void run() {
+                            createDir();
+                        }
+                    });
+                } else {
+                    fail(rc, path);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Records the znode created for this request
+     * @return false if the request was withdrawn in the meantime, in
+     * which case the znode is deleted again
+     */
+    private boolean adopt(String name) {
+        synchronized (this) {
+            if (!released) {
+                id = name;
+                return true;
+            }
+        }
+        delete(name);
+        return false;
+    }
+
+    private synchronized boolean hasId() {
+        return id != null;
+    }
+
+    /**
+     * Forgets the znode for this request so a new one gets created
+     * @return false if the request has been withdrawn
+     */
+    private synchronized boolean forget() {
+        id = null;
+        return !released;
+    }
+
+    /**
+     * Runs the given step again after the delay the retry policy asks for,
+     * or fails the request if the policy gives up
+     */
+    private void retry(int rc, String path, Runnable next) {
+        protocol.attemptFailed();
+        long now = System.currentTimeMillis();
+        if (attempts == 0) {
+            retriesStartedAt = now;
+            retryDelay = 0;
+        }
+        retryDelay = protocol.getRetryPolicy().getDelayBeforeRetry(attempts, now - retriesStartedAt, retryDelay);
+        if (retryDelay == RetryPolicy.STOP) {
+            fail(rc, path, true);
+            return;
+        }
+        LOG.debug("Attempt " + attempts + " failed with connection loss so retrying in " + retryDelay + "ms");
+        attempts++;
+        retries++;
+        LockMetrics metrics = protocol.getLockMetrics();
+        if (metrics != null) {
+            metrics.retried();
+        }
+        protocol.scheduleRetry(next, retryDelay);
+    }
+
+    private void fail(int rc, String path) {
+        fail(rc, path, false);
+    }
+
+    /**
+     * @param gaveUp true if the request failed because retries ran out or
+     * the circuit breaker is open
+     */
+    private void fail(int rc, String path, boolean gaveUp) {
+        KeeperException e = KeeperException.create(KeeperException.Code.get(rc), path);
+        LOG.warn("Failed to acquire lock: " + e, e);
+        if (setException(e)) {
+            finished(gaveUp);
+            unlock();
+        }
+    }
+
+    /**
+     * Counts the request in the retry metrics once it has been acquired,
+     * failed or been withdrawn, whichever comes first
+     */
+    private void finished(boolean gaveUp) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        protocol.getRetryMetrics().operationFinished(retries, gaveUp);
+    }
+
+    private void delete(String name) {
+        zookeeper.delete(name, -1, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String path, Object ctx) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                    // ZK will remove the ephemeral znode along with the session
+                    LOG.warn("Could not delete: " + path + " rc: " + code);
+                }
+            }
+        }, null);
+    }
+
+    @Override
+    public void unlock() {
+        String toDelete;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            toDelete = id;
+            id = null;
+        }
+        boolean wasOwner = isAcquired();
+        cancel(false);
+        finished(false);
+        LockMetrics metrics = protocol.getLockMetrics();
+        if (wasOwner && metrics != null) {
+            metrics.lockReleased(System.nanoTime() - acquiredAt);
+        }
+        if (toDelete != null && !protocol.isClosed()) {
+            delete(toDelete);
+        }
+        if (wasOwner && callback != null) {
+            protocol.dispatch(new Runnable() {
+                public void run() {
+                    callback.lockReleased();
+                }
+            });
+        }
+    }
+}
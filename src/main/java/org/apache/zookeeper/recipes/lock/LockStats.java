@@ -0,0 +1,270 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps the {@link LockMetrics} of one or more locks in memory and
+ * publishes them through JMX. <p/> Acquire latency and hold time go into
+ * histograms with a bucket per power of two nanoseconds, so recording is a
+ * few atomic increments and percentiles are accurate to within a factor of
+ * two. Queue depth and position are the values last seen. Sharing one
+ * instance between the locks on the same dir gives the figures for the dir
+ * as a whole.
+ *
+ */
+public class LockStats implements LockMetrics, LockStatsMBean {
+    private static final String DOMAIN = "org.apache.zookeeper.recipes.lock";
+
+    private final Histogram acquireLatency = new Histogram();
+    private final Histogram holdTime = new Histogram();
+    private volatile int queueDepth;
+    private volatile int queuePosition;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong watchFires = new AtomicLong();
+    private ObjectName objectName;
+
+    public void lockAcquired(long waitNanos) {
+        acquireLatency.record(waitNanos);
+    }
+
+    public void lockReleased(long holdNanos) {
+        holdTime.record(holdNanos);
+    }
+
+    public void queued(int position, int depth) {
+        queuePosition = position;
+        queueDepth = depth;
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    public void watchFired() {
+        watchFires.incrementAndGet();
+    }
+
+    /**
+     * Registers these stats with the platform MBean server
+     * @param name the name to register under, typically the lock dir
+     * @return the object name registered
+     * @throws JMException if the stats cannot be registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName newName = new ObjectName(DOMAIN + ":type=LockStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+        objectName = newName;
+        return newName;
+    }
+
+    /**
+     * Removes these stats from the platform MBean server if they were
+     * registered
+     * @throws JMException if the stats cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    public long getAcquisitions() {
+        return acquireLatency.getCount();
+    }
+
+    public double getMeanAcquireLatency() {
+        return toMillis(acquireLatency.getMean());
+    }
+
+    public double getAcquireLatency99thPercentile() {
+        return toMillis(acquireLatency.getPercentile(0.99));
+    }
+
+    public double getMaxAcquireLatency() {
+        return toMillis(acquireLatency.getMax());
+    }
+
+    public long getReleases() {
+        return holdTime.getCount();
+    }
+
+    public double getMeanHoldTime() {
+        return toMillis(holdTime.getMean());
+    }
+
+    public double getHoldTime99thPercentile() {
+        return toMillis(holdTime.getPercentile(0.99));
+    }
+
+    public double getMaxHoldTime() {
+        return toMillis(holdTime.getMax());
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getWatchFires() {
+        return watchFires.get();
+    }
+
+    /**
+     * return the histogram of acquire latencies
+     */
+    public Histogram getAcquireLatency() {
+        return acquireLatency;
+    }
+
+    /**
+     * return the histogram of hold times
+     */
+    public Histogram getHoldTime() {
+        return holdTime;
+    }
+
+    /**
+     * Clears every histogram, gauge and counter. Values recorded while the
+     * reset is under way may or may not survive it.
+     */
+    public void reset() {
+        acquireLatency.reset();
+        holdTime.reset();
+        queueDepth = 0;
+        queuePosition = 0;
+        maxQueueDepth.set(0);
+        retries.set(0);
+        watchFires.set(0);
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * A histogram of durations in nanoseconds with a bucket per power of
+     * two. Safe to record into and read from any thread.
+     */
+    public static class Histogram {
+        // bucket i holds values below 2^i which are not below 2^(i-1)
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+
+        /**
+         * return the number of values recorded
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * return the mean of the values recorded, or zero if there are none
+         */
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) total.get() / n;
+        }
+
+        /**
+         * return the largest value recorded
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound on the given percentile, at most twice the
+         * true value and never more than the largest value recorded
+         * @param fraction the percentile as a fraction between 0 and 1
+         * @return the bound, or zero if nothing has been recorded
+         */
+        public long getPercentile(double fraction) {
+            long n = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                n += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    long bound = i == 0 ? 0 : (i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(bound, max.get());
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * The JMX view of a {@link LockStats}. Times are in milliseconds.
+ *
+ */
+public interface LockStatsMBean {
+
+    long getAcquisitions();
+
+    double getMeanAcquireLatency();
+
+    double getAcquireLatency99thPercentile();
+
+    double getMaxAcquireLatency();
+
+    long getReleases();
+
+    double getMeanHoldTime();
+
+    double getHoldTime99thPercentile();
+
+    double getMaxHoldTime();
+
+    int getQueueDepth();
+
+    int getQueuePosition();
+
+    int getMaxQueueDepth();
+
+    long getRetries();
+
+    long getWatchFires();
+
+    void reset();
+}
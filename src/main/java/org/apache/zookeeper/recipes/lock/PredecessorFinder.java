@@ -0,0 +1,144 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.List;
+
+/**
+ * Finds the owner of a lock dir and the immediate predecessor of our own
+ * znode with a single pass over the children returned by getChildren. <p/>
+ * This gives the same answer as sorting the children as {@link ZNodeName}s
+ * and taking the first element and the last element of the head set before
+ * our own node, but nothing is allocated per child and nothing is sorted.
+ * Children without a sequence suffix sort after every lock node, so they can
+ * never be the owner or a predecessor. Sequence numbers are parsed and
+ * ordered exactly as {@link ZNodeName} does, wraparound included. <p/> An
+ * instance keeps the results of its last scan and is meant to be reused by a
+ * single lock.
+ *
+ */
+final class PredecessorFinder {
+    private String owner;
+    private String predecessor;
+    private int depth;
+    private int position;
+    private int blockers;
+
+    /**
+     * Scans the children of the lock dir
+     * @param children the child names as returned by getChildren
+     * @param id the full path of our own znode
+     * @return true if our own znode is among the children
+     */
+    boolean scan(List<String> children, String id) {
+        return scan(children, id, null);
+    }
+
+    /**
+     * Scans the children of the lock dir, ignoring compatible children when
+     * looking for the predecessor
+     * @param children the child names as returned by getChildren
+     * @param id the full path of our own znode
+     * @param compatiblePrefix children whose names start with this prefix do
+     * not block us and are never reported as the predecessor; may be null
+     * @return true if our own znode is among the children
+     */
+    boolean scan(List<String> children, String id, String compatiblePrefix) {
+        owner = null;
+        predecessor = null;
+        depth = 0;
+        position = 0;
+        blockers = 0;
+        long mySequence = ZNodeName.parseSequence(id);
+        long ownerSequence = 0;
+        long predecessorSequence = 0;
+        boolean found = false;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            String child = children.get(i);
+            long sequence = ZNodeName.parseSequence(child);
+            if (sequence == ZNodeName.NO_SEQUENCE) {
+                continue;
+            }
+            depth++;
+            if (owner == null || ZNodeName.compareSequences(sequence, ownerSequence) < 0) {
+                owner = child;
+                ownerSequence = sequence;
+            }
+            int order = ZNodeName.compareSequences(sequence, mySequence);
+            if (order < 0) {
+                position++;
+                if (compatiblePrefix != null && child.startsWith(compatiblePrefix)) {
+                    continue;
+                }
+                blockers++;
+                if (predecessor == null || ZNodeName.compareSequences(sequence, predecessorSequence) > 0) {
+                    predecessor = child;
+                    predecessorSequence = sequence;
+                }
+            } else if (order == 0 && isChildOf(id, child)) {
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the name of the child owning the lock after the last scan, or
+     * null if there were no lock nodes
+     */
+    String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns the name of the child immediately before our own znode after
+     * the last scan, or null if our znode is the first
+     */
+    String getPredecessor() {
+        return predecessor;
+    }
+
+    /**
+     * Returns the number of lock nodes seen by the last scan
+     */
+    int getQueueDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of lock nodes ahead of our own znode after the
+     * last scan, compatible ones included
+     */
+    int getQueuePosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of lock nodes ahead of our own znode which block
+     * it after the last scan. Nodes created later always sort after ours, so
+     * once this many have gone away the lock is ours without looking again.
+     */
+    int getBlockers() {
+        return blockers;
+    }
+
+    private static boolean isChildOf(String id, String child) {
+        int idx = id.length() - child.length() - 1;
+        return idx >= 0 && id.charAt(idx) == '/' && id.endsWith(child);
+    }
+}
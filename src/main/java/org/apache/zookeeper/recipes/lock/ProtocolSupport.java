@@ -20,14 +20,28 @@ package org.apache.zookeeper.recipes.lock;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.recipes.lock.ZooKeeperOperation;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A base class for protocol implementations which provides a number of higher 
@@ -38,11 +52,59 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 class ProtocolSupport {
     private static final Logger LOG = Logger.getLogger(ProtocolSupport.class);
+    private static final AtomicLong PREFIX_COUNT = new AtomicLong();
+    private static final AtomicInteger CALLBACK_THREAD_COUNT = new AtomicInteger();
+    private static final AtomicInteger WATCH_THREAD_COUNT = new AtomicInteger();
 
-    protected final ZooKeeper zookeeper;
+    /**
+     * Runs callbacks for every protocol without an executor of its own. It
+     * has a thread per processor at most, which only live while there is
+     * work for them, so a few slow listeners cannot tie up an unbounded
+     * number of threads.
+     */
+    private static final Executor DEFAULT_CALLBACK_EXECUTOR = createDefaultCallbackExecutor();
+
+    /**
+     * Handles watches and session expiry for every protocol without an
+     * executor of its own. Kept apart from the listener callbacks, as a
+     * task blocks for round trips and must never wait behind a slow
+     * listener; threads are started as needed and die once idle.
+     */
+    private static final Executor DEFAULT_WATCH_EXECUTOR = createDefaultWatchExecutor();
+
+    /**
+     * Runs the retries of callback driven operations once their delay is
+     * over. The tasks only send requests, so a single thread is enough.
+     */
+    private static final ScheduledExecutorService RETRY_SCHEDULER = createRetryScheduler();
+
+    protected volatile ZooKeeper zookeeper;
     private AtomicBoolean closed = new AtomicBoolean(false);
     private long retryDelay = 500L;
     private int retryCount = 10;
+    private volatile RetryPolicy retryPolicy;
+    // built from the retry delay and count when first needed, and again
+    // after either changes; guarded by this when written
+    private volatile RetryPolicy defaultRetryPolicy;
+    private volatile ConnectionStateMonitor connectionStateMonitor;
+    private volatile ZooKeeperSupplier zooKeeperSupplier;
+    private volatile SerialExecutor callbackExecutor = new SerialExecutor(DEFAULT_CALLBACK_EXECUTOR);
+    private volatile Executor watchExecutor = DEFAULT_WATCH_EXECUTOR;
+    private final Watcher stateListener = new Watcher() {
+        public void process(WatchedEvent event) {
+            synchronized (retryWait) {
+                retryWait.notifyAll();
+            }
+            connectionStateChanged(event.getState());
+        }
+    };
+    // waited on between attempts, so a state change or withdrawal ends the wait
+    private final Object retryWait = new Object();
+    private long retryWakeups;  // guarded by retryWait
+    private volatile int circuitBreakerThreshold;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final RetryMetrics retryMetrics = new RetryMetrics();
+    private volatile LockMetrics lockMetrics;
     private List<ACL> acl = ZooDefs.Ids.OPEN_ACL_UNSAFE;
 
     public ProtocolSupport(ZooKeeper zookeeper) {
@@ -55,6 +117,7 @@ class ProtocolSupport {
      */
     public void close() {
         if (closed.compareAndSet(false, true)) {
+            setConnectionStateMonitor(null);
             doClose();
         }
     }
@@ -95,8 +158,191 @@ class ProtocolSupport {
      * Sets the time waited between retry delays
      * @param retryDelay the retry delay
      */
-    public void setRetryDelay(long retryDelay) {
+    public synchronized void setRetryDelay(long retryDelay) {
         this.retryDelay = retryDelay;
+        defaultRetryPolicy = null;
+    }
+
+    /**
+     * get the number of attempts made before an operation
+     * failing with connection loss is given up on
+     * @return the retry count
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Sets the number of attempts made for an operation
+     * @param retryCount the retry count
+     */
+    public synchronized void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+        defaultRetryPolicy = null;
+    }
+
+    /**
+     * return the retry policy used by {@link #retryOperation(ZooKeeperOperation)}.
+     * Unless one has been set this is a {@link JitteredBackoffRetryPolicy}
+     * starting from the retry delay, backing off to at most retry count times
+     * the retry delay and giving up after retry count attempts.
+     * @return the retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        RetryPolicy policy = retryPolicy;
+        if (policy != null) {
+            return policy;
+        }
+        policy = defaultRetryPolicy;
+        if (policy != null) {
+            return policy;
+        }
+        synchronized (this) {
+            if (defaultRetryPolicy == null) {
+                defaultRetryPolicy = new JitteredBackoffRetryPolicy(retryDelay,
+                    retryDelay * Math.max(1, retryCount), retryCount, 0);
+            }
+            return defaultRetryPolicy;
+        }
+    }
+
+    /**
+     * Sets the retry policy; the retry delay and retry count are ignored by
+     * {@link #retryOperation(ZooKeeperOperation)} once a policy is set
+     * @param retryPolicy the policy, or null to go back to the default
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * return the monitor of the session's connection state, or null
+     * @return the connection state monitor
+     */
+    public ConnectionStateMonitor getConnectionStateMonitor() {
+        return connectionStateMonitor;
+    }
+
+    /**
+     * Sets the monitor receiving the connection state events of the session.
+     * <p/> With a monitor an operation which failed with connection loss is
+     * retried as soon as the client is connected again, straight away if it
+     * already has, instead of after the delay of the retry policy; the policy
+     * still decides when to give up. Without one the retry policy's delay is
+     * slept.
+     * @param connectionStateMonitor the monitor, or null
+     */
+    public synchronized void setConnectionStateMonitor(ConnectionStateMonitor connectionStateMonitor) {
+        if (this.connectionStateMonitor != null) {
+            this.connectionStateMonitor.removeStateListener(stateListener);
+        }
+        this.connectionStateMonitor = connectionStateMonitor;
+        if (connectionStateMonitor != null) {
+            connectionStateMonitor.addStateListener(stateListener);
+        }
+    }
+
+    /**
+     * return the supplier of replacement clients, or null
+     * @return the zookeeper supplier
+     */
+    public ZooKeeperSupplier getZooKeeperSupplier() {
+        return zooKeeperSupplier;
+    }
+
+    /**
+     * Sets the supplier asked for a new client once the session has expired.
+     * Without one an expired session is fatal to this protocol.
+     * @param zooKeeperSupplier the supplier, or null
+     */
+    public void setZooKeeperSupplier(ZooKeeperSupplier zooKeeperSupplier) {
+        this.zooKeeperSupplier = zooKeeperSupplier;
+    }
+
+    /**
+     * return the executor lock listener callbacks run on
+     * @return the callback executor
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor.getExecutor();
+    }
+
+    /**
+     * Sets the executor lock listener callbacks run on, so that they never
+     * run on, or hold up, the ZooKeeper event thread.
+     * Callbacks of this protocol still run one at a time and in order
+     * whatever the executor. On a JVM which has them, an executor starting a
+     * virtual thread per task makes a listener which blocks almost free.
+     * @param callbackExecutor the executor, or null for a shared default
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = new SerialExecutor(
+            callbackExecutor != null ? callbackExecutor : DEFAULT_CALLBACK_EXECUTOR);
+    }
+
+    /**
+     * return the executor watches and session expiry are handled on
+     * @return the watch executor
+     */
+    public Executor getWatchExecutor() {
+        return watchExecutor;
+    }
+
+    /**
+     * Sets the executor watches and session expiry are handled on. Its tasks
+     * block for round trips, so it should not be one which listener
+     * callbacks can tie up.
+     * @param watchExecutor the executor, or null for a shared default
+     */
+    public void setWatchExecutor(Executor watchExecutor) {
+        this.watchExecutor = watchExecutor != null ? watchExecutor : DEFAULT_WATCH_EXECUTOR;
+    }
+
+    /**
+     * get the number of consecutive attempts which have to fail with
+     * connection loss before the circuit breaker opens
+     * @return the threshold, zero if the circuit breaker is disabled
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive attempts which have to fail with
+     * connection loss before the circuit breaker opens. <p/> While it is open
+     * and the client is not connected, operations which start fail straight
+     * away with connection loss instead of waiting out their retries; an
+     * operation already retrying keeps going as its retry policy allows. The
+     * first attempt which succeeds closes it. The circuit breaker is off
+     * unless a threshold is set.
+     * @param circuitBreakerThreshold the threshold, zero, the default, to disable
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    /**
+     * return the counts of retries made by this protocol
+     * @return the retry metrics
+     */
+    public RetryMetrics getRetryMetrics() {
+        return retryMetrics;
+    }
+
+    /**
+     * return the lock metrics set on this protocol
+     * @return the lock metrics, or null if none are kept
+     */
+    public LockMetrics getLockMetrics() {
+        return lockMetrics;
+    }
+
+    /**
+     * Sets where the contention metrics of this protocol go
+     * @param lockMetrics the metrics, or null to keep none
+     */
+    public void setLockMetrics(LockMetrics lockMetrics) {
+        this.lockMetrics = lockMetrics;
     }
 
     /**
@@ -108,29 +354,64 @@ class ProtocolSupport {
 
 
     /**
-     * Perform the given operation, retrying if the connection fails
+     * Perform the given operation, retrying if the connection fails as the
+     * retry policy allows
      * @return object. it needs to be cast to the callee's expected 
      * return type.
+     * @throws InterruptedException if the calling thread is interrupted,
+     * including while it waits between attempts; no further attempt is made
      */
     protected Object retryOperation(ZooKeeperOperation operation) 
         throws KeeperException, InterruptedException {
+        RetryPolicy policy = getRetryPolicy();
         KeeperException exception = null;
-        for (int i = 0; i < retryCount; i++) {
-            try {
-                return operation.execute();
-            } catch (KeeperException.SessionExpiredException e) {
-                LOG.warn("Session expired for: " + zookeeper + " so reconnecting due to: " + e, e);
-                throw e;
-            } catch (KeeperException.ConnectionLossException e) {
-                if (exception == null) {
-                    exception = e;
+        long start = System.currentTimeMillis();
+        long delay = 0;
+        int retries = 0;
+        boolean gaveUp = false;
+        try {
+            // only an operation starting while the circuit is open is cut short,
+            // never the retries of one which was already under way
+            if (shortCircuit()) {
+                gaveUp = true;
+                throw new KeeperException.ConnectionLossException();
+            }
+            while (true) {
+                try {
+                    Object result = operation.execute();
+                    attemptSucceeded();
+                    return result;
+                } catch (KeeperException.SessionExpiredException e) {
+                    LOG.warn("Session expired for: " + zookeeper + " so reconnecting due to: " + e, e);
+                    throw e;
+                } catch (KeeperException.ConnectionLossException e) {
+                    if (exception == null) {
+                        exception = e;
+                    }
+                    attemptFailed();
+                    delay = policy.getDelayBeforeRetry(retries, System.currentTimeMillis() - start, delay);
+                    if (delay == RetryPolicy.STOP) {
+                        gaveUp = true;
+                        throw exception;
+                    }
+                    LOG.debug("Attempt " + retries + " failed with connection loss so " +
+                            "attempting to reconnect: " + e, e);
+                    retries++;
+                    LockMetrics metrics = lockMetrics;
+                    if (metrics != null) {
+                        metrics.retried();
+                    }
+                    ConnectionStateMonitor monitor = connectionStateMonitor;
+                    if (monitor != null) {
+                        awaitReconnect(monitor);
+                    } else {
+                        retryDelay(delay);
+                    }
                 }
-                LOG.debug("Attempt " + i + " failed with connection loss so " +
-                		"attempting to reconnect: " + e, e);
-                retryDelay(i);
             }
+        } finally {
+            retryMetrics.operationFinished(retries, gaveUp);
         }
-        throw exception;
     }
 
     /**
@@ -164,10 +445,32 @@ class ProtocolSupport {
         } catch (KeeperException e) {
             LOG.warn("Caught: " + e, e);
         } catch (InterruptedException e) {
-            LOG.warn("Caught: " + e, e);
+            LOG.debug("Interrupted ensuring " + path + " exists: " + e, e);
+            // keep the interrupt for the caller's next blocking call
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Returns a znode name prefix which is unique to this call within the
+     * current session, so that a create which failed with connection loss
+     * can find its own znode again without mistaking another lock's for it
+     * @return the prefix, ending with a dash
+     */
+    protected String uniquePrefix() {
+        return uniquePrefix("x");
+    }
+
+    /**
+     * Returns a unique znode name prefix as {@link #uniquePrefix()} does,
+     * starting with the given type so other lock nodes can tell it apart
+     * @param type the leading part of the prefix
+     * @return the prefix, ending with a dash
+     */
+    protected String uniquePrefix(String type) {
+        return type + "-" + zookeeper.getSessionId() + "-" + PREFIX_COUNT.incrementAndGet() + "-";
+    }
+
     /**
      * Returns true if this protocol has been closed
      * @return true if this protocol is closed
@@ -177,16 +480,212 @@ class ProtocolSupport {
     }
 
     /**
-     * Performs a retry delay if this is not the first attempt
-     * @param attemptCount the number of the attempts performed so far
+     * Replaces the client after its session has expired, unless that has
+     * been done already
+     * @param expired the client whose session has expired
+     * @return true if there is a client with a live session to carry on with
+     */
+    protected synchronized boolean renewSession(ZooKeeper expired) {
+        if (zookeeper != expired) {
+            return true;
+        }
+        ZooKeeperSupplier supplier = zooKeeperSupplier;
+        if (supplier == null || isClosed()) {
+            return false;
+        }
+        try {
+            zookeeper = supplier.get(expired);
+            consecutiveFailures.set(0);
+            LOG.info("Replaced expired session with: " + zookeeper);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not replace expired session: " + e, e);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted replacing expired session: " + e, e);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Runs the given task on the callback executor, after every task
+     * dispatched before it
+     * @param task the task to run
+     */
+    protected void dispatch(Runnable task) {
+        callbackExecutor.execute(task);
+    }
+
+    /**
+     * Runs the given task on the watch executor, for work such as handling
+     * a watch which must not wait behind a slow listener
+     * @param task the task to run
+     */
+    protected void runAsync(Runnable task) {
+        try {
+            watchExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Watch executor rejected task, running it directly: " + e, e);
+            task.run();
+        }
+    }
+
+    /**
+     * Ends the wait of every operation of this protocol which is waiting to
+     * retry, whether for the retry delay or for the client to reconnect, so
+     * it makes its next attempt straight away; for a request which has been
+     * withdrawn, that attempt gives up
+     */
+    protected void wakeRetries() {
+        synchronized (retryWait) {
+            retryWakeups++;
+            retryWait.notifyAll();
+        }
+    }
+
+    /**
+     * Allow derived classes to react to the connection state events passed
+     * on by the connection state monitor. Called from the ZooKeeper event
+     * thread.
+     * @param state the new state of the connection
+     */
+    protected void connectionStateChanged(Watcher.Event.KeeperState state) {
+    }
+
+    /**
+     * Returns true if an operation starting now should fail straight away
+     * with connection loss as the circuit breaker is open, counting it
+     */
+    boolean shortCircuit() {
+        if (!isCircuitOpen()) {
+            return false;
+        }
+        retryMetrics.shortCircuited();
+        LOG.debug("Not attempting operation as the connection is down");
+        return true;
+    }
+
+    /**
+     * Records an attempt which failed with connection loss, towards opening
+     * the circuit breaker
+     */
+    void attemptFailed() {
+        consecutiveFailures.incrementAndGet();
+    }
+
+    /**
+     * Records an attempt which reached the server, closing the circuit
+     * breaker
+     */
+    void attemptSucceeded() {
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * Runs the retry of a callback driven operation after the given delay,
+     * without blocking the thread which saw it fail
+     * @param task the retry, which must not block
+     * @param delay the delay in milliseconds
      */
-    protected void retryDelay(int attemptCount) {
-        if (attemptCount > 0) {
-            try {
-                Thread.sleep(attemptCount * retryDelay);
-            } catch (InterruptedException e) {
-                LOG.debug("Failed to sleep: " + e, e);
+    void scheduleRetry(Runnable task, long delay) {
+        if (delay <= 0) {
+            task.run();
+            return;
+        }
+        try {
+            RETRY_SCHEDULER.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Retry scheduler rejected task, running it directly: " + e, e);
+            task.run();
+        }
+    }
+
+    /**
+     * Returns true if enough attempts in a row have failed with connection
+     * loss and the client is still not connected
+     */
+    private boolean isCircuitOpen() {
+        int threshold = circuitBreakerThreshold;
+        return threshold > 0 && consecutiveFailures.get() >= threshold
+            && !zookeeper.getState().isConnected();
+    }
+
+    /**
+     * Parks until the client is connected again, for at most a session
+     * timeout after which the session will have expired anyway
+     * @throws InterruptedException if interrupted while waiting, which
+     * ends the operation being retried
+     */
+    private void awaitReconnect(ConnectionStateMonitor monitor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + zookeeper.getSessionTimeout();
+        synchronized (retryWait) {
+            long wakeups = retryWakeups;
+            // the state listener notifies, so this wakes up as the monitor changes
+            while (!monitor.isConnected() && !monitor.isExpired() && wakeups == retryWakeups) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                retryWait.wait(remaining);
             }
         }
     }
+
+    /**
+     * Waits before the next attempt
+     * @param delay the time to wait in milliseconds
+     * @throws InterruptedException if interrupted while waiting, which
+     * ends the operation being retried
+     */
+    protected void retryDelay(long delay) throws InterruptedException {
+        if (delay <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (retryWait) {
+            long wakeups = retryWakeups;
+            while (wakeups == retryWakeups) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                retryWait.wait(remaining);
+            }
+        }
+    }
+
+    private static Executor createDefaultWatchExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "lock-watch-" + WATCH_THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    private static ScheduledExecutorService createRetryScheduler() {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "lock-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static Executor createDefaultCallbackExecutor() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "lock-callback-" + CALLBACK_THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
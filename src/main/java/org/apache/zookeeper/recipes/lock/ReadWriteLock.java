@@ -0,0 +1,110 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+
+import java.util.List;
+
+/**
+ * A <a href="package.html">protocol to implement a shared read lock alongside
+ *  an exclusive write lock</a>. <p/> Every request queues an ephemeral
+ *  sequential znode under the lock dir. A read request only waits for the
+ *  nearest write znode queued before it, so readers never wait for each
+ *  other and an uncontended read costs a single round trip of latency. A
+ *  write request waits for whichever znode is queued immediately before it.
+ *  <p/> Requests are served in the order they were queued: a reader arriving
+ *  after a waiting writer queues behind that writer, so a writer only ever
+ *  waits for the readers that were already ahead of it and cannot be starved.
+ *  <p/> Like {@link AsyncWriteLock} nothing here blocks; each request returns
+ *  a {@link LockFuture} which completes when the lock is held. Znodes created
+ *  by {@link WriteLock} or {@link AsyncWriteLock} in the same dir count as
+ *  write requests.
+ *
+ */
+public class ReadWriteLock extends ProtocolSupport {
+    private static final String READ = "read";
+    private static final String WRITE = "write";
+
+    private final String dir;
+    private byte[] data = {0x12, 0x34};
+
+    /**
+     * zookeeper contructor for the read/write lock
+     * @param zookeeper zookeeper client instance
+     * @param dir the parent path you want to use for locking
+     * @param acl the acl that you want to use for all the paths,
+     * if null world read/write is used.
+     */
+    public ReadWriteLock(ZooKeeper zookeeper, String dir, List<ACL> acl) {
+        super(zookeeper);
+        this.dir = dir;
+        if (acl != null) {
+            setAcl(acl);
+        }
+    }
+
+    /**
+     * Enqueues a request for the shared read lock without blocking
+     * @return the handle on the request
+     */
+    public LockFuture readLock() {
+        return readLock(null);
+    }
+
+    /**
+     * Enqueues a request for the shared read lock without blocking
+     * @param callback notified on the callback executor when the
+     * lock is acquired and released; may be null
+     * @return the handle on the request
+     */
+    public LockFuture readLock(LockListener callback) {
+        LockRequest request = new LockRequest(this, dir, data, uniquePrefix(READ), READ + "-", callback);
+        request.start();
+        return request;
+    }
+
+    /**
+     * Enqueues a request for the exclusive write lock without blocking
+     * @return the handle on the request
+     */
+    public LockFuture writeLock() {
+        return writeLock(null);
+    }
+
+    /**
+     * Enqueues a request for the exclusive write lock without blocking
+     * @param callback notified on the callback executor when the
+     * lock is acquired and released; may be null
+     * @return the handle on the request
+     */
+    public LockFuture writeLock(LockListener callback) {
+        LockRequest request = new LockRequest(this, dir, data, uniquePrefix(WRITE), null, callback);
+        request.start();
+        return request;
+    }
+
+    /**
+     * return the parent dir for lock
+     * @return the parent dir used for locks.
+     */
+    public String getDir() {
+        return dir;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the operations run through
+ * {@link ProtocolSupport#retryOperation(ZooKeeperOperation)} were retried.
+ * All counts are cumulative and safe to read from any thread.
+ *
+ */
+public class RetryMetrics {
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong maxRetries = new AtomicLong();
+    private final AtomicLong givenUp = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    void operationFinished(int retriesMade, boolean gaveUp) {
+        operations.incrementAndGet();
+        retries.addAndGet(retriesMade);
+        long max;
+        while (retriesMade > (max = maxRetries.get())) {
+            if (maxRetries.compareAndSet(max, retriesMade)) {
+                break;
+            }
+        }
+        if (gaveUp) {
+            givenUp.incrementAndGet();
+        }
+    }
+
+    void shortCircuited() {
+        shortCircuited.incrementAndGet();
+    }
+
+    /**
+     * return the number of operations run, however they ended
+     */
+    public long getOperations() {
+        return operations.get();
+    }
+
+    /**
+     * return the number of retries made across all operations
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * return the most retries made by a single operation
+     */
+    public long getMaxRetriesPerOperation() {
+        return maxRetries.get();
+    }
+
+    /**
+     * return the mean number of retries per operation
+     */
+    public double getMeanRetriesPerOperation() {
+        long ops = operations.get();
+        return ops == 0 ? 0 : (double) retries.get() / ops;
+    }
+
+    /**
+     * return the number of operations which failed with connection loss
+     * after running out of retries or hitting the open circuit breaker
+     */
+    public long getGivenUp() {
+        return givenUp.get();
+    }
+
+    /**
+     * return the number of operations not attempted because the circuit breaker was
+     * open
+     */
+    public long getShortCircuited() {
+        return shortCircuited.get();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * Decides whether and how long after a failed attempt an operation is
+ * retried by {@link ProtocolSupport}. <p/> The policy is handed everything
+ * it needs on each call so a single instance can be shared by any number
+ * of locks and concurrent operations.
+ *
+ */
+public interface RetryPolicy {
+
+    /**
+     * Returned by {@link #getDelayBeforeRetry(int, long, long)} to give up
+     */
+    public static final long STOP = -1L;
+
+    /**
+     * Works out how long to wait before the next attempt
+     * @param retries the number of retries made so far, 0 before the first
+     * @param elapsedMillis the time since the first attempt started
+     * @param previousDelayMillis the delay before the previous retry, 0 before
+     * the first
+     * @return the delay in milliseconds, or {@link #STOP} to give up
+     */
+    public long getDelayBeforeRetry(int retries, long elapsedMillis, long previousDelayMillis);
+}
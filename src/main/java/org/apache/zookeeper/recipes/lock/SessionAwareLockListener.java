@@ -0,0 +1,49 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+/**
+ * A {@link LockListener} which is also told when the lock it owns may no
+ * longer be safe to act on. <p/> While the connection is suspended the lock
+ * is still held as far as ZooKeeper is concerned, but the owner cannot tell
+ * whether its session will survive and should pause work it cannot undo. If
+ * the session expires the lock is lost and another process may already own
+ * it. The callbacks need a {@link ConnectionStateMonitor} set on the lock and
+ * are made on the lock's callback executor, in the order the events happened.
+ *
+ */
+public interface SessionAwareLockListener extends LockListener {
+
+    /**
+     * call back called when the connection is lost
+     * while we own the lock
+     */
+    public void lockSuspended();
+
+    /**
+     * call back called when the connection comes back
+     * within the same session, so we still own the lock
+     */
+    public void lockResumed();
+
+    /**
+     * call back called when the session expired while we
+     * owned the lock; called instead of {@link #lockReleased()}
+     */
+    public void lockLost();
+}
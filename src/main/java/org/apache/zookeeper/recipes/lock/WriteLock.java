@@ -18,6 +18,7 @@
 package org.apache.zookeeper.recipes.lock;
 
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -27,8 +28,10 @@ import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A <a href="package.html">protocol to implement an exclusive
@@ -36,20 +39,41 @@ import java.util.TreeSet;
  *  start the process of grabbing the lock; you may get the lock then or it may be 
  *  some time later. <p/> You can register a listener so that you are invoked 
  *  when you get the lock; otherwise you can ask if you have the lock
- *  by calling {@link #isOwner()}
+ *  by calling {@link #isOwner()}. Listeners are called on the callback
+ *  executor, never on the ZooKeeper event thread. <p/> With a {@link ZooKeeperSupplier}
+ *  set the lock survives the expiry of its session: a waiting lock queues up
+ *  again in the new session, while an owner is told that it no longer holds
+ *  the lock, through {@link SessionAwareLockListener#lockLost()} if the
+ *  listener implements it and {@link LockListener#lockReleased()} otherwise.
+ *  For an owner to find out without calling into the lock, the session's
+ *  state events have to reach a {@link ConnectionStateMonitor} set on this
+ *  lock. <p/> The state of the lock is an immutable snapshot swapped
+ *  atomically, so {@link #isOwner()} and the other queries never block,
+ *  and {@link #unlock()} never waits for a lock attempt in progress; the
+ *  attempt notices it has been withdrawn and cleans up after itself. Lock
+ *  attempts, which make round trips, are still made one at a time.
  *
  */
 public class WriteLock extends ProtocolSupport {
     private static final Logger LOG = Logger.getLogger(WriteLock.class);
+    private static final int ACQUIRED = 0;
+    private static final int RELEASED = 1;
+    private static final int SUSPENDED = 2;
+    private static final int RESUMED = 3;
+    private static final int LOST = 4;
 
     private final String dir;
-    private String id;
-    private ZNodeName idName;
-    private String ownerId;
-    private String lastChildId;
+    private final AtomicReference<LockState> state = new AtomicReference<LockState>(LockState.IDLE);
+    // held while a lock attempt talks to ZooKeeper, never by unlock() or
+    // by the queries
+    private final ReentrantLock attempt = new ReentrantLock();
     private byte[] data = {0x12, 0x34};
-    private LockListener callback;
+    private volatile LockListener callback;
     private LockZooKeeperOperation zop;
+    // guarded by attempt
+    private final PredecessorFinder finder = new PredecessorFinder();
+    private volatile long leaseNanos;
+    private volatile boolean suspended;
     
     /**
      * zookeeper contructor for writelock
@@ -104,39 +128,54 @@ public class WriteLock extends ProtocolSupport {
      * @throws RuntimeException throws a runtime exception
      * if it cannot connect to zookeeper.
      */
-    public synchronized void unlock() throws RuntimeException {
-        
-        if (!isClosed() && id != null) {
-            // we don't need to retry this operation in the case of failure
-            // as ZK will remove ephemeral files and we don't wanna hang
-            // this process when closing if we cannot reconnect to ZK
-            try {
-                
-                ZooKeeperOperation zopdel = new ZooKeeperOperation() {
-                    public boolean execute() throws KeeperException,
-                        InterruptedException {
-                        zookeeper.delete(id, -1);   
-                        return Boolean.TRUE;
-                    }
-                };
-                zopdel.execute();
-            } catch (InterruptedException e) {
-                LOG.warn("Caught: " + e, e);
-                //set that we have been interrupted.
-               Thread.currentThread().interrupt();
-            } catch (KeeperException.NoNodeException e) {
-                // do nothing
-            } catch (KeeperException e) {
-                LOG.warn("Caught: " + e, e);
-                throw (RuntimeException) new RuntimeException(e.getMessage()).
-                    initCause(e);
-            }
-            finally {
-                if (callback != null) {
-                    callback.lockReleased();
+    public void unlock() throws RuntimeException {
+        if (isClosed()) {
+            return;
+        }
+        // withdrawn before the znode goes, so nobody sees us as the owner
+        // of a lock which may already be someone else's
+        LockState withdrawn = state.getAndSet(LockState.IDLE);
+        if (withdrawn != LockState.IDLE && !withdrawn.isOwner()) {
+            // an attempt waiting to retry would otherwise only notice once
+            // its retry delay or the reconnect is over
+            wakeRetries();
+        }
+        final String id = withdrawn.id;
+        if (id == null) {
+            // an attempt still creating our znode deletes it again itself
+            return;
+        }
+        // we don't need to retry this operation in the case of failure
+        // as ZK will remove ephemeral files and we don't wanna hang
+        // this process when closing if we cannot reconnect to ZK
+        try {
+            
+            ZooKeeperOperation zopdel = new ZooKeeperOperation() {
+                public boolean execute() throws KeeperException,
+                    InterruptedException {
+                    zookeeper.delete(id, -1);   
+                    return Boolean.TRUE;
                 }
-                id = null;
+            };
+            zopdel.execute();
+        } catch (InterruptedException e) {
+            LOG.warn("Caught: " + e, e);
+            //set that we have been interrupted.
+           Thread.currentThread().interrupt();
+        } catch (KeeperException.NoNodeException e) {
+            // do nothing
+        } catch (KeeperException e) {
+            LOG.warn("Caught: " + e, e);
+            throw (RuntimeException) new RuntimeException(e.getMessage()).
+                initCause(e);
+        }
+        finally {
+            LockMetrics metrics = getLockMetrics();
+            if (withdrawn.isOwner() && metrics != null) {
+                metrics.lockReleased(System.nanoTime() - withdrawn.acquiredAt);
             }
+            notifyListener(RELEASED);
+            suspended = false;
         }
     }
     
@@ -146,15 +185,65 @@ public class WriteLock extends ProtocolSupport {
      * my predecessor
      */
     private class LockWatcher implements Watcher {
+        private final String id;
+        private final String predecessor;
+        private final boolean lastBlocker;
+        private final int queueDepth;
+
+        /**
+         * @param id our znode when the watch was set
+         * @param predecessor the znode being watched
+         * @param lastBlocker true if it was the only znode ahead of ours,
+         * in which case its deletion hands us the lock without listing the
+         * dir again
+         * @param queueDepth the queue depth seen when the watch was set
+         */
+        LockWatcher(String id, String predecessor, boolean lastBlocker, int queueDepth) {
+            this.id = id;
+            this.predecessor = predecessor;
+            this.lastBlocker = lastBlocker;
+            this.queueDepth = queueDepth;
+        }
+
         public void process(WatchedEvent event) {
             // lets either become the leader or watch the new/updated node
             LOG.debug("Watcher fired on path: " + event.getPath() + " state: " + 
                     event.getState() + " type " + event.getType());
-            try {
-                lock();
-            } catch (Exception e) {
-                LOG.warn("Failed to acquire lock: " + e, e);
+            if (event.getType() == Event.EventType.None
+                && event.getState() != Event.KeeperState.Expired) {
+                // the client keeps the watch across reconnects, and retrying
+                // on the event thread while disconnected would only hold up
+                // the events behind this one
+                return;
             }
+            LockMetrics metrics = getLockMetrics();
+            if (metrics != null) {
+                metrics.watchFired();
+            }
+            if (lastBlocker && event.getType() == Event.EventType.NodeDeleted) {
+                LockState current = state.get();
+                if (id.equals(current.id) && predecessor.equals(current.lastChildId)) {
+                    LockState owner = current.acquired(System.nanoTime());
+                    if (state.compareAndSet(current, owner)) {
+                        if (metrics != null) {
+                            // the depth is as last seen, less our predecessor
+                            metrics.queued(0, queueDepth - 1);
+                        }
+                        acquired(owner);
+                        return;
+                    }
+                }
+            }
+            // looking again makes round trips, so it is kept off the event thread
+            runAsync(new Runnable() {
+                public void run() {
+                    try {
+                        retry();
+                    } catch (Exception e) {
+                        LOG.warn("Failed to acquire lock: " + e, e);
+                    }
+                }
+            });
         }
     }
     
@@ -164,35 +253,66 @@ public class WriteLock extends ProtocolSupport {
      */
     private  class LockZooKeeperOperation implements ZooKeeperOperation {
         
-        /** find if we have been created earler if not create our node
+        /** find if we have been created earler by a create which failed
+         * with connection loss after it reached the server
          * 
          * @param prefix the prefix node
          * @param zookeeper teh zookeeper client
          * @param dir the dir paretn
+         * @return the path of the znode found, or null if there is none
          * @throws KeeperException
          * @throws InterruptedException
          */
-        private void findPrefixInChildren(String prefix, ZooKeeper zookeeper, String dir) 
+        private String findPrefixInChildren(String prefix, ZooKeeper zookeeper, String dir) 
             throws KeeperException, InterruptedException {
             List<String> names = zookeeper.getChildren(dir, false);
             for (String name : names) {
                 if (name.startsWith(prefix)) {
-                    id = name;
+                    String id = dir + "/" + name;
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("Found id created last time: " + id);
                     }
-                    break;
+                    return id;
                 }
             }
-            if (id == null) {
-                id = zookeeper.create(dir + "/" + prefix, data, 
-                        getAcl(), EPHEMERAL_SEQUENTIAL);
+            return null;
+        }
 
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Created id: " + id);
-                }
+        /** create our node, creating the dir first if it doesn't exist yet
+         * 
+         * @param prefix the prefix node
+         * @return the path of the znode created
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        private String createId(String prefix) throws KeeperException, InterruptedException {
+            String id;
+            try {
+                id = zookeeper.create(dir + "/" + prefix, data, getAcl(), EPHEMERAL_SEQUENTIAL);
+            } catch (KeeperException.NoNodeException e) {
+                ensurePathExists(dir);
+                id = zookeeper.create(dir + "/" + prefix, data, getAcl(), EPHEMERAL_SEQUENTIAL);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Created id: " + id);
             }
+            return id;
+        }
 
+        /** delete a znode created for a request which has been withdrawn
+         * in the meantime
+         * 
+         * @param id the znode
+         */
+        private void deleteOrphan(String id) throws InterruptedException {
+            try {
+                zookeeper.delete(id, -1);
+            } catch (KeeperException.NoNodeException e) {
+                // do nothing
+            } catch (KeeperException e) {
+                // ZK will remove the ephemeral znode along with the session
+                LOG.warn("Could not delete: " + id + " due to: " + e, e);
+            }
         }
         
         /**
@@ -201,71 +321,437 @@ public class WriteLock extends ProtocolSupport {
          * @return if the command was successful or not
          */
         public boolean execute() throws KeeperException, InterruptedException {
-            do {
-                if (id == null) {
-                    long sessionId = zookeeper.getSessionId();
-                    String prefix = "x-" + sessionId + "-";
-                    // lets try look up the current ID if we failed 
-                    // in the middle of creating the znode
-                    findPrefixInChildren(prefix, zookeeper, dir);
-                    idName = new ZNodeName(id);
+            // loops until we either own the lock or are watching a
+            // predecessor; a failed compareAndSet means unlock() or the
+            // watcher got in first, so we look again at what they left
+            while (true) {
+                LockState current = state.get();
+                if (current == LockState.IDLE) {
+                    // withdrawn by unlock()
+                    return Boolean.FALSE;
                 }
-                if (id != null) {
-                    List<String> names = zookeeper.getChildren(dir, false);
-                    if (names.isEmpty()) {
-                        LOG.warn("No children in: " + dir + " when we've just " +
-                        "created one! Lets recreate it...");
-                        // lets force the recreation of the id
-                        id = null;
-                    } else {
-                        // lets sort them explicitly (though they do seem to come back in order ususally :)
-                        SortedSet<ZNodeName> sortedNames = new TreeSet<ZNodeName>();
-                        for (String name : names) {
-                            sortedNames.add(new ZNodeName(dir + "/" + name));
-                        }
-                        ownerId = sortedNames.first().getName();
-                        SortedSet<ZNodeName> lessThanMe = sortedNames.headSet(idName);
-                        if (!lessThanMe.isEmpty()) {
-                            ZNodeName lastChildName = lessThanMe.last();
-                            lastChildId = lastChildName.getName();
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("watching less than me node: " + lastChildId);
-                            }
-                            Stat stat = zookeeper.exists(lastChildId, new LockWatcher());
-                            if (stat != null) {
-                                return Boolean.FALSE;
-                            } else {
-                                LOG.warn("Could not find the" +
-                                		" stats for less than me: " + lastChildName.getName());
-                            }
-                        } else {
-                            if (isOwner()) {
-                                if (callback != null) {
-                                    callback.lockAcquired();
-                                }
-                                return Boolean.TRUE;
-                            }
+                if (current.isOwner()) {
+                    return Boolean.TRUE;
+                }
+                if (current.id == null) {
+                    // lets try look up the current ID if we failed 
+                    // in the middle of creating the znode; otherwise the
+                    // create is the first round trip and its returned name
+                    // already carries our sequence number
+                    String id = current.prefix == null ? null
+                        : findPrefixInChildren(current.prefix, zookeeper, dir);
+                    if (id == null) {
+                        LockState creating = current.creating(uniquePrefix());
+                        if (!state.compareAndSet(current, creating)) {
+                            continue;
                         }
+                        current = creating;
+                        id = createId(creating.prefix);
+                    }
+                    LockState created = current.created(id);
+                    if (!state.compareAndSet(current, created)) {
+                        deleteOrphan(id);
+                        continue;
+                    }
+                    current = created;
+                }
+                List<String> names = zookeeper.getChildren(dir, false);
+                if (!finder.scan(names, current.id)) {
+                    LOG.warn("Could not find our id: " + current.id + " in: " + dir +
+                    " when we've just created it! Lets recreate it...");
+                    // lets force the recreation of the id
+                    state.compareAndSet(current, current.forgotten());
+                    continue;
+                }
+                LockMetrics metrics = getLockMetrics();
+                if (metrics != null) {
+                    metrics.queued(finder.getQueuePosition(), finder.getQueueDepth());
+                }
+                String lastChildName = finder.getPredecessor();
+                if (lastChildName == null) {
+                    // nothing less than me, so ownerId is our id
+                    LockState owner = current.acquired(System.nanoTime());
+                    if (state.compareAndSet(current, owner)) {
+                        acquired(owner);
+                        return Boolean.TRUE;
                     }
+                    continue;
+                }
+                String lastChildId = dir + "/" + lastChildName;
+                LockState watching = current.watching(dir + "/" + finder.getOwner(), lastChildId);
+                if (!state.compareAndSet(current, watching)) {
+                    continue;
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("watching less than me node: " + lastChildId);
+                }
+                Stat stat = zookeeper.exists(lastChildId, new LockWatcher(current.id, lastChildId,
+                    finder.getBlockers() == 1, finder.getQueueDepth()));
+                if (stat != null) {
+                    return Boolean.FALSE;
+                } else {
+                    LOG.warn("Could not find the" +
+                    		" stats for less than me: " + lastChildId);
                 }
             }
-            while (id == null);
-            return Boolean.FALSE;
         }
     };
 
+    /**
+     * Records that we have become the owner of the lock
+     * @param owner the state which made us the owner
+     */
+    private void acquired(LockState owner) {
+        suspended = false;
+        LockMetrics metrics = getLockMetrics();
+        if (metrics != null) {
+            metrics.lockAcquired(owner.acquiredAt - owner.requestedAt);
+        }
+        notifyListener(ACQUIRED);
+    }
+
     /**
      * Attempts to acquire the exclusive write lock returning whether or not it was
      * acquired. Note that the exclusive lock may be acquired some time later after
      * this method has been invoked due to the current lock owner going away.
+     * <p/> If the calling thread is interrupted, including while waiting to
+     * retry after a connection loss, the request is withdrawn as if by
+     * {@link #unlock()} and the InterruptedException is thrown. Calling
+     * {@link #unlock()} from another thread withdraws the request too, and
+     * an attempt waiting to retry gives up straight away.
+     */
+    public boolean lock() throws KeeperException, InterruptedException {
+        if (isClosed()) {
+            return false;
+        }
+        attempt.lockInterruptibly();
+        try {
+            // only a lock attempt moves the state away from idle
+            state.compareAndSet(LockState.IDLE, LockState.requested(System.nanoTime()));
+            return attemptLock();
+        } catch (InterruptedException e) {
+            // nobody is left to wait for the lock, so leave the queue
+            unlock();
+            throw e;
+        } finally {
+            attempt.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock only if nobody else holds it or is queued for it,
+     * without waiting. <p/> The create and the listing are sent back to
+     * back, ZooKeeper applying a session's requests in order, so this costs
+     * a single round trip of latency. If the lock is not free our znode is
+     * deleted again without waiting for the delete, so a failed attempt
+     * never leaves anything in the queue for others to watch. If a request
+     * made by {@link #lock()} is already queued, this only reports whether
+     * it owns the lock.
+     * @return true if we now own the lock
      */
-    public synchronized boolean lock() throws KeeperException, InterruptedException {
+    public boolean tryLock() throws KeeperException, InterruptedException {
         if (isClosed()) {
             return false;
         }
-        ensurePathExists(dir);
+        attempt.lockInterruptibly();
+        try {
+            if (state.get() != LockState.IDLE) {
+                return isOwner();
+            }
+            long requestedAt = System.nanoTime();
+            TryLockOperation operation = new TryLockOperation();
+            boolean acquired = false;
+            try {
+                acquired = (Boolean) retryOperation(operation);
+            } finally {
+                if (!acquired && operation.id != null) {
+                    deleteQuietly(operation.id);
+                }
+            }
+            if (!acquired) {
+                return false;
+            }
+            // only a lock attempt moves the state away from idle
+            LockState owner = LockState.requested(requestedAt).created(operation.id)
+                .acquired(System.nanoTime());
+            state.set(owner);
+            LockMetrics metrics = getLockMetrics();
+            if (metrics != null) {
+                metrics.queued(0, finder.getQueueDepth());
+            }
+            acquired(owner);
+            return true;
+        } finally {
+            attempt.unlock();
+        }
+    }
 
-        return (Boolean) retryOperation(zop);
+    /**
+     * a zookeeper operation that creates our znode and lists the dir in
+     * one round trip, and succeeds only if our znode comes first
+     */
+    private class TryLockOperation implements ZooKeeperOperation {
+        private final String prefix = uniquePrefix();
+        private boolean attempted;
+        String id;
+
+        public boolean execute() throws KeeperException, InterruptedException {
+            List<String> names = null;
+            if (attempted && id == null) {
+                // our create may have reached the server before the
+                // connection went, in which case the listing shows it
+                names = zookeeper.getChildren(dir, false);
+                for (String name : names) {
+                    if (name.startsWith(prefix)) {
+                        id = dir + "/" + name;
+                    }
+                }
+            }
+            if (id == null) {
+                attempted = true;
+                PipelinedCreate create = new PipelinedCreate();
+                create.send(dir + "/" + prefix);
+                create.await();
+                if (create.createCode == KeeperException.Code.NONODE) {
+                    ensurePathExists(dir);
+                    create = new PipelinedCreate();
+                    create.send(dir + "/" + prefix);
+                    create.await();
+                }
+                if (create.createCode != KeeperException.Code.OK) {
+                    throw KeeperException.create(create.createCode, dir);
+                }
+                id = create.id;
+                if (create.listCode != KeeperException.Code.OK) {
+                    throw KeeperException.create(create.listCode, dir);
+                }
+                names = create.children;
+            }
+            if (names == null) {
+                names = zookeeper.getChildren(dir, false);
+            }
+            return finder.scan(names, id) && finder.getPredecessor() == null;
+        }
+    }
+
+    /**
+     * an asynchronous create followed straight away by a listing of the
+     * dir, which is guaranteed to see the znode being created
+     */
+    private class PipelinedCreate implements AsyncCallback.StringCallback,
+            AsyncCallback.ChildrenCallback {
+        private final CountDownLatch done = new CountDownLatch(2);
+        KeeperException.Code createCode;
+        String id;
+        KeeperException.Code listCode;
+        List<String> children;
+
+        void send(String path) {
+            zookeeper.create(path, data, getAcl(), EPHEMERAL_SEQUENTIAL, this, null);
+            zookeeper.getChildren(dir, false, this, null);
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+
+        public void processResult(int rc, String path, Object ctx, String name) {
+            createCode = KeeperException.Code.get(rc);
+            id = name;
+            done.countDown();
+        }
+
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            listCode = KeeperException.Code.get(rc);
+            this.children = children;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Deletes a znode we no longer want without waiting for the answer
+     */
+    private void deleteQuietly(String id) {
+        zookeeper.delete(id, -1, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String path, Object ctx) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                    // ZK will remove the ephemeral znode along with the session
+                    LOG.warn("Could not delete: " + path + " rc: " + code);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Looks at the lock dir again for a request which is already queued,
+     * unless it has been withdrawn in the meantime
+     */
+    private void retry() throws KeeperException, InterruptedException {
+        attempt.lock();
+        try {
+            // a watch on our old predecessor can still fire after unlock()
+            if (state.get().id == null || isClosed()) {
+                return;
+            }
+            attemptLock();
+        } finally {
+            attempt.unlock();
+        }
+    }
+
+    private boolean attemptLock() throws KeeperException, InterruptedException {
+        // the dir is only created if our create finds it missing, which
+        // keeps an uncontended acquisition down to a create and a getChildren
+        try {
+            return (Boolean) retryOperation(zop);
+        } catch (KeeperException.SessionExpiredException e) {
+            boolean wasOwner = isOwner();
+            if (!recoverFromExpiry(e) || wasOwner) {
+                throw e;
+            }
+            // queue up again in the new session
+            return (Boolean) retryOperation(zop);
+        }
+    }
+
+    /**
+     * Follows the connection state events passed on by the connection state
+     * monitor. This is the only way an owner finds out about a lost
+     * connection or an expired session without calling into the lock.
+     */
+    @Override
+    protected void connectionStateChanged(Watcher.Event.KeeperState state) {
+        switch (state) {
+            case Disconnected:
+                suspend();
+                break;
+            case SyncConnected:
+            case ConnectedReadOnly:
+                resume();
+                break;
+            case Expired:
+                // reconnecting blocks, so it is kept off the event thread
+                runAsync(new Runnable() {
+                    public void run() {
+                        sessionExpired();
+                    }
+                });
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void suspend() {
+        // the owner has to hear about this even while another thread is
+        // blocked in lock() or unlock()
+        if (!suspended && isOwner()) {
+            suspended = true;
+            LOG.warn("Connection lost while owning lock: " + getId());
+            notifyListener(SUSPENDED);
+        }
+    }
+
+    private void resume() {
+        if (suspended && isOwner() && zookeeper.getState().isConnected()) {
+            suspended = false;
+            notifyListener(RESUMED);
+        }
+    }
+
+    private void sessionExpired() {
+        attempt.lock();
+        try {
+            if (state.get().id == null || zookeeper.getState().isAlive()) {
+                // not queued, or the session has been replaced already
+                return;
+            }
+            boolean wasOwner = isOwner();
+            if (!recoverFromExpiry(null) || wasOwner) {
+                return;
+            }
+            attemptLock();
+        } catch (Exception e) {
+            LOG.warn("Failed to queue up again after session expiry: " + e, e);
+        } finally {
+            attempt.unlock();
+        }
+    }
+
+    /**
+     * Forgets the znode of the expired session, which ZooKeeper has already
+     * deleted, and moves on to a new session if there is a
+     * {@link ZooKeeperSupplier}. An owner is told that it has lost the lock,
+     * while a waiter is left requested so that it queues up again.
+     * @param cause the exception the expiry showed up as, or null
+     * @return true if there is a new session to carry on with
+     */
+    private boolean recoverFromExpiry(KeeperException cause) {
+        ZooKeeper expired = zookeeper;
+        LockState current;
+        do {
+            current = state.get();
+            if (current == LockState.IDLE) {
+                // unlocked in the meantime, nothing to recover
+                return renewSession(expired);
+            }
+        } while (!state.compareAndSet(current,
+            current.isOwner() ? LockState.IDLE : LockState.requested(current.requestedAt)));
+        boolean wasOwner = current.isOwner();
+        LOG.warn("Session expired while " + (wasOwner ? "owning " : "waiting for ") +
+            "lock: " + current.id, cause);
+        suspended = false;
+        if (wasOwner) {
+            // tell the owner before reconnecting so it can stop work early
+            notifyListener(LOST);
+        }
+        return renewSession(expired);
+    }
+
+    /**
+     * Hands a callback for the current listener to the callback executor,
+     * so listeners never run on the ZooKeeper event thread and always see
+     * events in the order they happened
+     */
+    private void notifyListener(final int event) {
+        final LockListener listener = callback;
+        if (listener == null) {
+            return;
+        }
+        dispatch(new Runnable() {
+            public void run() {
+                SessionAwareLockListener sessionAware = listener instanceof SessionAwareLockListener
+                    ? (SessionAwareLockListener) listener : null;
+                switch (event) {
+                    case ACQUIRED:
+                        listener.lockAcquired();
+                        break;
+                    case RELEASED:
+                        listener.lockReleased();
+                        break;
+                    case SUSPENDED:
+                        if (sessionAware != null) {
+                            sessionAware.lockSuspended();
+                        }
+                        break;
+                    case RESUMED:
+                        if (sessionAware != null) {
+                            sessionAware.lockResumed();
+                        }
+                        break;
+                    case LOST:
+                        if (sessionAware != null) {
+                            sessionAware.lockLost();
+                        } else {
+                            listener.lockReleased();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
     }
 
     /**
@@ -281,7 +767,7 @@ public class WriteLock extends ProtocolSupport {
      *  lock (or the leader)
      */
     public boolean isOwner() {
-        return id != null && ownerId != null && id.equals(ownerId);
+        return state.get().isOwner();
     }
 
     /**
@@ -289,7 +775,119 @@ public class WriteLock extends ProtocolSupport {
      * @return the id for this lock
      */
     public String getId() {
-       return this.id;
+       return state.get().id;
     }
-}
 
+    /**
+     * Returns a fencing token for the current ownership of the lock. <p/>
+     * The token is the sequence number of our znode, so every later owner
+     * of the same lock dir gets a larger token and a store which remembers
+     * the largest token it has seen can reject writes from a stale owner.
+     * Tokens start again from zero if the lock dir is deleted and recreated.
+     * @return the fencing token, or -1 if we do not own the lock
+     */
+    public long getFencingToken() {
+        LockState current = state.get();
+        if (!current.isOwner()) {
+            return -1;
+        }
+        return ZNodeName.fencingToken(current.id);
+    }
+
+    /**
+     * Limits how long the lock is considered held after it was acquired.
+     * <p/> The lease is only checked locally by {@link #isLeaseValid()}; the
+     * znode is kept until {@link #unlock()}. A holder which checks its lease
+     * before acting does not need to read from ZooKeeper to find out whether
+     * it still owns the lock, at the price of giving up early.
+     * @param duration the lease duration, zero or less for no lease
+     * @param unit the unit of the duration
+     */
+    public void setLeaseDuration(long duration, TimeUnit unit) {
+        this.leaseNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Returns true if we own the lock, the connection is not suspended and
+     * the lease, if any, has not run out. Never blocks or talks to
+     * ZooKeeper, so it is cheap enough to check inside a critical section
+     * before every piece of work. Connection state changes are only seen if
+     * a {@link ConnectionStateMonitor} is set on this lock.
+     */
+    public boolean isOwnershipValid() {
+        return !suspended && isLeaseValid();
+    }
+
+    /**
+     * Returns true if we own the lock and the lease set with
+     * {@link #setLeaseDuration(long, TimeUnit)}, if any, has not run out
+     */
+    public boolean isLeaseValid() {
+        LockState current = state.get();
+        if (!current.isOwner()) {
+            return false;
+        }
+        long lease = leaseNanos;
+        return lease <= 0 || System.nanoTime() - current.acquiredAt < lease;
+    }
+
+    /**
+     * An immutable snapshot of where a lock request stands. Every change
+     * makes a new snapshot which is swapped in with compareAndSet, so a
+     * change based on a snapshot which is no longer current fails instead
+     * of overwriting what another thread did.
+     */
+    private static final class LockState {
+        /** no request, the state after unlock() */
+        static final LockState IDLE = new LockState(null, null, null, null, 0, 0);
+
+        /** our znode, or null until it has been created */
+        final String id;
+        /** the prefix of the znode being created, so a create lost to
+         * connection loss can be found again */
+        final String prefix;
+        final String ownerId;
+        /** the predecessor being watched */
+        final String lastChildId;
+        final long requestedAt;
+        final long acquiredAt;
+
+        private LockState(String id, String prefix, String ownerId, String lastChildId,
+                long requestedAt, long acquiredAt) {
+            this.id = id;
+            this.prefix = prefix;
+            this.ownerId = ownerId;
+            this.lastChildId = lastChildId;
+            this.requestedAt = requestedAt;
+            this.acquiredAt = acquiredAt;
+        }
+
+        static LockState requested(long requestedAt) {
+            return new LockState(null, null, null, null, requestedAt, 0);
+        }
+
+        boolean isOwner() {
+            return id != null && id.equals(ownerId);
+        }
+
+        LockState creating(String newPrefix) {
+            return new LockState(null, newPrefix, null, null, requestedAt, 0);
+        }
+
+        LockState created(String newId) {
+            return new LockState(newId, null, null, null, requestedAt, 0);
+        }
+
+        LockState forgotten() {
+            return requested(requestedAt);
+        }
+
+        LockState watching(String newOwnerId, String newLastChildId) {
+            return new LockState(id, null, newOwnerId, newLastChildId, requestedAt, 0);
+        }
+
+        LockState acquired(long now) {
+            return new LockState(id, null, id, null, requestedAt, now);
+        }
+    }
+}
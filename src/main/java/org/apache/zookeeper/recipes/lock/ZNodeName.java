@@ -17,43 +17,121 @@
  */
 package org.apache.zookeeper.recipes.lock;
 
-import org.apache.log4j.Logger;
-
 /**
  * Represents an ephemeral znode name which has an ordered sequence number
  * and can be sorted in order
+ * <p/>
+ * The sequence number ZooKeeper appends is the parent's signed 32-bit
+ * cversion, formatted as ten digits, so after 2147483647 it wraps around to
+ * -2147483648 and the suffix picks up a minus sign of its own. Sequence
+ * numbers are therefore compared with serial number arithmetic (the sign of
+ * their 32-bit difference), which keeps a queue straddling the wrap in
+ * creation order. Suffixes are parsed in place into a long once, when the
+ * name is constructed; no substrings or exceptions are created for names
+ * which have no sequence suffix.
  *
  */
 class ZNodeName implements Comparable<ZNodeName> {
+    /**
+     * The sequence of a name which does not end in a sequence suffix; such
+     * names sort after every name that does
+     */
+    static final long NO_SEQUENCE = Long.MIN_VALUE;
+
+    // more digits than this cannot be a ZooKeeper sequence and may not fit in a long
+    private static final int MAX_SEQUENCE_DIGITS = 18;
+
     private final String name;
+    private final long sequence;
     private String prefix;
-    private int sequence = -1;
-    private static final Logger LOG = Logger.getLogger(ZNodeName.class);
     
     public ZNodeName(String name) {
         if (name == null) {
             throw new NullPointerException("id cannot be null");
         }
         this.name = name;
-        this.prefix = name;
-        int idx = name.lastIndexOf('-');
-        if (idx >= 0) {
-            this.prefix = name.substring(0, idx);
-            try {
-                this.sequence = Integer.parseInt(name.substring(idx + 1));
-                // If an exception occurred we misdetected a sequence suffix,
-                // so return -1.
-            } catch (NumberFormatException e) {
-                LOG.info("Number format exception for " + idx, e);
-            } catch (ArrayIndexOutOfBoundsException e) {
-               LOG.info("Array out of bounds for " + idx, e);
-            }
+        this.sequence = parseSequence(name);
+    }
+
+    /**
+     * Parses the sequence suffix of a znode name without allocating
+     * @param name the znode name or path
+     * @return the sequence number, or {@link #NO_SEQUENCE} if the name does
+     * not end in a dash followed by digits
+     */
+    static long parseSequence(String name) {
+        int end = name.length();
+        int start = digitsStart(name);
+        if (start < 0 || end - start > MAX_SEQUENCE_DIGITS) {
+            return NO_SEQUENCE;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (name.charAt(i) - '0');
+        }
+        // a wrapped counter is formatted with its own sign after our dash
+        return start >= 2 && name.charAt(start - 2) == '-' ? -value : value;
+    }
+
+    /**
+     * Compares two sequence numbers in the order ZooKeeper handed them out
+     * @return a negative number, zero or a positive number as s1 was created
+     * before, is the same as, or was created after s2
+     */
+    static int compareSequences(long s1, long s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == NO_SEQUENCE) {
+            return 1;
+        }
+        if (s2 == NO_SEQUENCE) {
+            return -1;
+        }
+        if (s1 == (int) s1 && s2 == (int) s2) {
+            return (int) s1 - (int) s2 < 0 ? -1 : 1;
         }
+        return s1 < s2 ? -1 : 1;
+    }
+
+    /**
+     * Turns the sequence number of a lock znode into a fencing token. <p/>
+     * ZooKeeper sequence numbers are signed ints which wrap to negative
+     * values after 2147483647, so they are read as unsigned to keep tokens
+     * increasing through the first wraparound.
+     * @param name the name or path of the znode
+     * @return the fencing token, or -1 if the name has no sequence number
+     */
+    static long fencingToken(String name) {
+        long sequence = parseSequence(name);
+        if (sequence == NO_SEQUENCE) {
+            return -1;
+        }
+        return sequence == (int) sequence ? sequence & 0xffffffffL : sequence;
+    }
+
+    /**
+     * Returns the index of the first digit of the sequence suffix, or -1
+     */
+    private static int digitsStart(String name) {
+        int end = name.length();
+        int start = end;
+        while (start > 0 && isDigit(name.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end || start == 0 || name.charAt(start - 1) != '-') {
+            return -1;
+        }
+        return start;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
     @Override
     public String toString() {
-        return name.toString();
+        return name;
     }
 
     @Override
@@ -73,15 +151,15 @@ class ZNodeName implements Comparable<ZNodeName> {
         return name.hashCode() + 37;
     }
 
+    /**
+     * Orders by sequence number first, as that is the order in which the
+     * znodes were created; the prefix embeds the session id so ordering on it
+     * first would let a newcomer sort ahead of the current lock owner.
+     */
     public int compareTo(ZNodeName that) {
-        int answer = this.prefix.compareTo(that.prefix);
+        int answer = compareSequences(this.sequence, that.sequence);
         if (answer == 0) {
-            int s1 = this.sequence;
-            int s2 = that.sequence;
-            if (s1 == -1 && s2 == -1) {
-                return this.name.compareTo(that.name);
-            }
-            answer = s1 == -1 ? 1 : s2 == -1 ? -1 : s1 - s2;
+            return this.name.compareTo(that.name);
         }
         return answer;
     }
@@ -94,9 +172,9 @@ class ZNodeName implements Comparable<ZNodeName> {
     }
 
     /**
-     * Returns the sequence number
+     * Returns the sequence number, or {@link #NO_SEQUENCE}
      */
-    public int getZNodeName() {
+    public long getSequence() {
         return sequence;
     }
 
@@ -104,6 +182,16 @@ class ZNodeName implements Comparable<ZNodeName> {
      * Returns the text prefix before the sequence number
      */
     public String getPrefix() {
+        if (prefix == null) {
+            int start = digitsStart(name);
+            if (start < 0) {
+                int idx = name.lastIndexOf('-');
+                prefix = idx >= 0 ? name.substring(0, idx) : name;
+            } else {
+                int idx = sequence < 0 ? start - 2 : start - 1;
+                prefix = name.substring(0, idx);
+            }
+        }
         return prefix;
     }
 }
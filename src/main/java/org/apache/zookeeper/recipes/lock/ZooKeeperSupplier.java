@@ -0,0 +1,41 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+
+/**
+ * Creates the ZooKeeper client a protocol carries on with after its session
+ * has expired. <p/> Several protocols sharing an expired client will each
+ * ask for a replacement, so an implementation should hand them all the same
+ * new client, and is responsible for closing the expired one. To keep
+ * recovering from later expiries the new client should deliver its state
+ * events to the protocol's {@link ConnectionStateMonitor}.
+ *
+ */
+public interface ZooKeeperSupplier {
+
+    /**
+     * Returns a client with a new session
+     * @param expired the client whose session has expired
+     * @return the client to use from now on
+     */
+    public ZooKeeper get(ZooKeeper expired) throws IOException, InterruptedException;
+}
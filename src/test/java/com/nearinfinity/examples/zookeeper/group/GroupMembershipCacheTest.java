@@ -0,0 +1,167 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GroupMembershipCacheTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _groupName;
+    private String _groupPath;
+    private GroupMembershipCache _cache;
+    private final BlockingQueue<String> _changes = new LinkedBlockingQueue<String>();
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException, KeeperException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _groupName = "test-group-" + System.currentTimeMillis();
+        _groupPath = "/" + _groupName;
+        _zooKeeper.create(_groupPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        _cache = new GroupMembershipCache(_zooKeeper, _groupName);
+        _cache.addListener(new MembershipListener() {
+            @Override
+            public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+                _changes.add("joined " + joined + ", left " + left);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        _cache.close();
+        if (_zooKeeper.exists(_groupPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_groupPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_groupPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_groupPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testFirstListingIsReportedAsJoined() throws Exception {
+        join("b");
+        join("a");
+        _cache.start();
+
+        assertThat(nextChange(), is("joined [a, b], left []"));
+        assertThat(_cache.getMembers(), is(members("a", "b")));
+        assertThat(_cache.size(), is(2));
+    }
+
+    @Test
+    public void testOnlyChangesAreReported() throws Exception {
+        join("a");
+        join("c");
+        _cache.start();
+        assertThat(nextChange(), is("joined [a, c], left []"));
+
+        join("b");
+        assertThat(nextChange(), is("joined [b], left []"));
+        leave("a");
+        assertThat(nextChange(), is("joined [], left [a]"));
+
+        assertThat(_cache.getMembers(), is(members("b", "c")));
+        assertThat(_cache.isMember("a"), is(false));
+        assertThat(_cache.isMember("b"), is(true));
+    }
+
+    @Test
+    public void testDeletedGroupLeavesEveryMemberAndIsPickedUpAgain() throws Exception {
+        join("a");
+        _cache.start();
+        assertThat(nextChange(), is("joined [a], left []"));
+
+        leave("a");
+        assertThat(nextChange(), is("joined [], left [a]"));
+        _zooKeeper.delete(_groupPath, -1);
+
+        _zooKeeper.create(_groupPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        join("b");
+        assertThat(nextChange(), is("joined [b], left []"));
+        assertThat(_cache.getMembers(), is(members("b")));
+    }
+
+    @Test
+    public void testFailingListenerDoesNotKeepOthersFromChanges() throws Exception {
+        MembershipListener recording = new MembershipListener() {
+            @Override
+            public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+                _changes.add("joined " + joined + ", left " + left);
+            }
+        };
+        MembershipListener failing = new MembershipListener() {
+            @Override
+            public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+                throw new IllegalStateException("listener failed");
+            }
+        };
+        _cache.close();
+        _cache = new GroupMembershipCache(_zooKeeper, _groupName);
+        _cache.addListener(failing);
+        _cache.addListener(recording);
+        join("a");
+        _cache.start();
+        assertThat(nextChange(), is("joined [a], left []"));
+
+        join("b");
+        assertThat(nextChange(), is("joined [b], left []"));
+        // catching up a listener which fails still adds it
+        _cache.addListenerWithMembers(failing);
+        leave("a");
+        assertThat(nextChange(), is("joined [], left [a]"));
+    }
+
+    private void join(String member) throws KeeperException, InterruptedException {
+        _zooKeeper.create(_groupPath + "/" + member, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+    }
+
+    private void leave(String member) throws KeeperException, InterruptedException {
+        _zooKeeper.delete(_groupPath + "/" + member, -1);
+    }
+
+    private String nextChange() throws InterruptedException {
+        return _changes.poll(10, TimeUnit.SECONDS);
+    }
+
+    private static SortedSet<String> members(String... members) {
+        return new TreeSet<String>(Arrays.asList(members));
+    }
+}
@@ -0,0 +1,124 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GroupMembershipIterableTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _groupName;
+    private String _groupPath;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException, KeeperException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _groupName = "test-group-" + System.currentTimeMillis();
+        _groupPath = "/" + _groupName;
+        _zooKeeper.create(_groupPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        List<String> children = _zooKeeper.getChildren(_groupPath, false);
+        for (String child : children) {
+            _zooKeeper.delete(_groupPath + "/" + child, -1);
+        }
+        _zooKeeper.delete(_groupPath, -1);
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testListsEveryChange() throws Exception {
+        Iterator<List<String>> iterator = new GroupMembershipIterable(_zooKeeper, _groupName).iterator();
+        assertThat(iterator.hasNext(), is(true));
+        assertThat(iterator.next().size(), is(0));
+
+        join(1, 0);
+        assertThat(iterator.hasNext(), is(true));
+        assertThat(iterator.next().size(), is(1));
+    }
+
+    @Test
+    public void testBurstIsListedOnce() throws Exception {
+        Iterator<List<String>> iterator = new GroupMembershipIterable(_zooKeeper, _groupName,
+                300, 10000, TimeUnit.MILLISECONDS).iterator();
+        assertThat(iterator.hasNext(), is(true));
+        assertThat(iterator.next().size(), is(0));
+
+        Thread joiner = joinInBackground(20, 20);
+        assertThat(iterator.hasNext(), is(true));
+        assertThat(iterator.next().size(), is(20));
+        joiner.join();
+    }
+
+    @Test
+    public void testMaxDelayBoundsTheWait() throws Exception {
+        Iterator<List<String>> iterator = new GroupMembershipIterable(_zooKeeper, _groupName,
+                300, 500, TimeUnit.MILLISECONDS).iterator();
+        assertThat(iterator.hasNext(), is(true));
+        assertThat(iterator.next().size(), is(0));
+
+        Thread joiner = joinInBackground(100, 50);
+        long start = System.currentTimeMillis();
+        assertThat(iterator.hasNext(), is(true));
+        int listed = iterator.next().size();
+        assertThat(System.currentTimeMillis() - start < 2500, is(true));
+        assertThat(listed > 0 && listed < 100, is(true));
+        joiner.join();
+    }
+
+    private Thread joinInBackground(final int members, final long intervalMillis) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    join(members, intervalMillis);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void join(int members, long intervalMillis) throws KeeperException, InterruptedException {
+        for (int i = 0; i < members; i++) {
+            _zooKeeper.create(_groupPath + "/member-", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+            Thread.sleep(intervalMillis);
+        }
+    }
+}
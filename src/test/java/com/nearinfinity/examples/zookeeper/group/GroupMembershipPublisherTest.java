@@ -0,0 +1,230 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GroupMembershipPublisherTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _groupName;
+    private String _groupPath;
+    private GroupMembershipPublisher _publisher;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException, KeeperException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _groupName = "test-group-" + System.currentTimeMillis();
+        _groupPath = "/" + _groupName;
+        _zooKeeper.create(_groupPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        _publisher = new GroupMembershipPublisher(_zooKeeper, _groupName);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        _publisher.close();
+        if (_zooKeeper.exists(_groupPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_groupPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_groupPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_groupPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testDeliversSnapshotsAsRequested() throws Exception {
+        join("a");
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        _publisher.subscribe(subscriber);
+        assertThat(subscriber.next().toString(), is(_groupPath + "@1[a]"));
+
+        join("b");
+        // nothing more was requested yet
+        assertThat(subscriber.poll(200), is(nullValue()));
+        subscriber._subscription.request(1);
+        assertThat(subscriber.next().getMembers().toString(), is("[a, b]"));
+    }
+
+    @Test
+    public void testSubscriberWhichIsBehindGetsOnlyTheLatestSnapshot() throws Exception {
+        RecordingSubscriber slow = new RecordingSubscriber(1);
+        RecordingSubscriber fast = new RecordingSubscriber(Long.MAX_VALUE);
+        _publisher.subscribe(slow);
+        _publisher.subscribe(fast);
+        assertThat(slow.next().size(), is(0));
+        assertThat(fast.next().size(), is(0));
+
+        for (int i = 0; i < 5; i++) {
+            join("member-" + i);
+        }
+        while (fast.next().size() < 5) {
+            // wait for the publisher to have seen every join
+        }
+
+        slow._subscription.request(Long.MAX_VALUE);
+        assertThat(slow.next().size(), is(5));
+        assertThat(slow.poll(200), is(nullValue()));
+    }
+
+    @Test
+    public void testCancelledSubscriberGetsNothingMore() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        _publisher.subscribe(subscriber);
+        assertThat(subscriber.next().size(), is(0));
+
+        subscriber._subscription.cancel();
+        assertThat(_publisher.getSubscriberCount(), is(0));
+        join("a");
+        assertThat(subscriber.poll(200), is(nullValue()));
+    }
+
+    @Test
+    public void testDeletedGroupCompletesSubscribers() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        _publisher.subscribe(subscriber);
+        assertThat(subscriber.next().size(), is(0));
+
+        _zooKeeper.delete(_groupPath, -1);
+        assertThat(subscriber._completed.poll(10, TimeUnit.SECONDS), is("complete"));
+
+        // subscribing afterwards completes straight away
+        RecordingSubscriber late = new RecordingSubscriber(1);
+        _publisher.subscribe(late);
+        assertThat(late._completed.poll(10, TimeUnit.SECONDS), is("complete"));
+    }
+
+    @Test
+    public void testNonPositiveRequestFailsTheSubscription() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        _publisher.subscribe(subscriber);
+        subscriber._subscription.request(0);
+        assertThat(subscriber._completed.poll(10, TimeUnit.SECONDS).startsWith("error"), is(true));
+    }
+
+    @Test
+    public void testSubscriberWhoseOnNextThrowsIsFailedAndCancelled() throws Exception {
+        RecordingSubscriber failing = new RecordingSubscriber(Long.MAX_VALUE) {
+            @Override
+            public void onNext(MembershipSnapshot snapshot) {
+                super.onNext(snapshot);
+                throw new IllegalStateException("subscriber failed");
+            }
+        };
+        RecordingSubscriber other = new RecordingSubscriber(Long.MAX_VALUE);
+        _publisher.subscribe(failing);
+        _publisher.subscribe(other);
+        assertThat(failing.next().size(), is(0));
+        assertThat(other.next().size(), is(0));
+        assertThat(failing._completed.poll(10, TimeUnit.SECONDS),
+                is("error java.lang.IllegalStateException: subscriber failed"));
+        assertThat(_publisher.getSubscriberCount(), is(1));
+
+        join("a");
+        assertThat(other.next().getMembers().toString(), is("[a]"));
+        assertThat(failing.poll(200), is(nullValue()));
+    }
+
+    @Test
+    public void testExpiredSessionFailsSubscribers() throws Exception {
+        ZooKeeper expiring = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            GroupMembershipPublisher publisher = new GroupMembershipPublisher(expiring, _groupName);
+            RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            publisher.subscribe(subscriber);
+            assertThat(subscriber.next().size(), is(0));
+
+            _embeddedServer.expireSession(expiring.getSessionId());
+            assertThat(subscriber._completed.poll(10, TimeUnit.SECONDS),
+                    is("error " + KeeperException.create(KeeperException.Code.SESSIONEXPIRED)));
+            assertThat(publisher.getSubscriberCount(), is(0));
+        } finally {
+            expiring.close();
+        }
+    }
+
+    private void join(String member) throws KeeperException, InterruptedException {
+        _zooKeeper.create(_groupPath + "/" + member, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+    }
+
+    private static class RecordingSubscriber implements MembershipSubscriber {
+
+        private final long _initialRequest;
+        private final BlockingQueue<MembershipSnapshot> _snapshots = new LinkedBlockingQueue<MembershipSnapshot>();
+        private final BlockingQueue<String> _completed = new LinkedBlockingQueue<String>();
+        private volatile MembershipSubscription _subscription;
+
+        RecordingSubscriber(long initialRequest) {
+            _initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(MembershipSubscription subscription) {
+            _subscription = subscription;
+            if (_initialRequest > 0) {
+                subscription.request(_initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(MembershipSnapshot snapshot) {
+            _snapshots.add(snapshot);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            _completed.add("error " + error);
+        }
+
+        @Override
+        public void onComplete() {
+            _completed.add("complete");
+        }
+
+        MembershipSnapshot next() throws InterruptedException {
+            MembershipSnapshot snapshot = poll(10000);
+            if (snapshot == null) {
+                throw new AssertionError("No snapshot delivered");
+            }
+            return snapshot;
+        }
+
+        MembershipSnapshot poll(long timeoutMillis) throws InterruptedException {
+            return _snapshots.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GroupRegistryTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _groupA;
+    private String _groupB;
+    private GroupRegistry _registry;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException, KeeperException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        long now = System.currentTimeMillis();
+        _groupA = "test-group-a-" + now;
+        _groupB = "test-group-b-" + now;
+        _zooKeeper.create("/" + _groupA, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        _zooKeeper.create("/" + _groupB, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        _registry = new GroupRegistry(_zooKeeper);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        _registry.close();
+        for (String group : new String[]{_groupA, _groupB}) {
+            List<String> children = _zooKeeper.getChildren("/" + group, false);
+            for (String child : children) {
+                _zooKeeper.delete("/" + group + "/" + child, -1);
+            }
+            _zooKeeper.delete("/" + group, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testRoutesChangesToTheSubscribersOfTheirGroup() throws Exception {
+        RecordingListener a1 = new RecordingListener();
+        RecordingListener a2 = new RecordingListener();
+        RecordingListener b = new RecordingListener();
+        _registry.subscribe(_groupA, a1);
+        _registry.subscribe(_groupA, a2);
+        _registry.subscribe(_groupB, b);
+        assertThat(_registry.getGroupCount(), is(2));
+
+        join(_groupA, "x");
+        assertThat(a1.next(), is("joined [x], left []"));
+        assertThat(a2.next(), is("joined [x], left []"));
+        join(_groupB, "y");
+        assertThat(b.next(), is("joined [y], left []"));
+        assertThat(a1.poll(200), is(nullValue()));
+        assertThat(_registry.getMembers(_groupA).toString(), is("[x]"));
+    }
+
+    @Test
+    public void testOneListingPerChangeHoweverManySubscribers() throws Exception {
+        RecordingListener[] listeners = new RecordingListener[3];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new RecordingListener();
+            _registry.subscribe(_groupA, listeners[i]);
+        }
+        join(_groupA, "x");
+        for (RecordingListener listener : listeners) {
+            assertThat(listener.next(), is("joined [x], left []"));
+        }
+
+        long before = _embeddedServer.getPacketsReceived();
+        join(_groupA, "y");
+        for (RecordingListener listener : listeners) {
+            assertThat(listener.next(), is("joined [y], left []"));
+        }
+        // the create and a single getChildren
+        assertThat(_embeddedServer.getPacketsReceived() - before < 4, is(true));
+    }
+
+    @Test
+    public void testLateSubscriberIsCaughtUp() throws Exception {
+        RecordingListener first = new RecordingListener();
+        _registry.subscribe(_groupA, first);
+        join(_groupA, "x");
+        assertThat(first.next(), is("joined [x], left []"));
+
+        RecordingListener late = new RecordingListener();
+        _registry.subscribe(_groupA, late);
+        assertThat(late.next(), is("joined [x], left []"));
+        join(_groupA, "y");
+        assertThat(late.next(), is("joined [y], left []"));
+    }
+
+    @Test
+    public void testGroupIsDroppedWithItsLastSubscriber() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        _registry.subscribe(_groupA, first);
+        _registry.subscribe(_groupA, second);
+
+        _registry.unsubscribe(_groupA, first);
+        assertThat(_registry.getGroupCount(), is(1));
+        _registry.unsubscribe(_groupA, second);
+        assertThat(_registry.getGroupCount(), is(0));
+
+        join(_groupA, "x");
+        assertThat(second.poll(200), is(nullValue()));
+    }
+
+    private void join(String group, String member) throws KeeperException, InterruptedException {
+        _zooKeeper.create("/" + group + "/" + member, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+    }
+
+    private static class RecordingListener implements MembershipListener {
+
+        private final BlockingQueue<String> _changes = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void membershipChanged(SortedSet<String> joined, SortedSet<String> left) {
+            _changes.add("joined " + joined + ", left " + left);
+        }
+
+        String next() throws InterruptedException {
+            String change = poll(10000);
+            if (change == null) {
+                throw new AssertionError("No change delivered");
+            }
+            return change;
+        }
+
+        String poll(long timeoutMillis) throws InterruptedException {
+            return _changes.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.nearinfinity.examples.zookeeper.group;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class JoinGroupTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private JoinGroup _joinGroup;
+    private String _groupName;
+    private String _groupPath;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException, KeeperException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _groupName = "test-group-" + System.currentTimeMillis();
+        _groupPath = "/" + _groupName;
+        _zooKeeper.create(_groupPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        _joinGroup = new JoinGroup();
+        _joinGroup.connect(ZK_CONNECTION_STRING);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        _joinGroup.close();
+        if (_zooKeeper.exists(_groupPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_groupPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_groupPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_groupPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testJoinAllCreatesEveryMemberInFewRoundTrips() throws Exception {
+        List<String> members = members(500);
+        long before = _embeddedServer.getPacketsReceived();
+        List<String> createdPaths = _joinGroup.joinAll(_groupName, members);
+        assertThat(_embeddedServer.getPacketsReceived() - before < 5, is(true));
+
+        assertThat(createdPaths.size(), is(500));
+        assertThat(createdPaths.get(0), is(_groupPath + "/member-0"));
+        assertThat(_zooKeeper.getChildren(_groupPath, false).size(), is(500));
+    }
+
+    @Test
+    public void testLeaveAllDeletesTheMembers() throws Exception {
+        _joinGroup.joinAll(_groupName, members(300));
+        _joinGroup.leaveAll(_groupName, members(200));
+        assertThat(_zooKeeper.getChildren(_groupPath, false).size(), is(100));
+    }
+
+    @Test
+    public void testFailedChunkLeavesEarlierChunksApplied() throws Exception {
+        _zooKeeper.create(_groupPath + "/member-5", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        ChunkedMulti multi = new ChunkedMulti(_zooKeeper, Integer.MAX_VALUE, 4);
+        for (String member : members(8)) {
+            String path = _groupPath + "/" + member;
+            multi.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL), path, null);
+        }
+        try {
+            multi.commit();
+            fail("Expected the second chunk to fail");
+        } catch (KeeperException.NodeExistsException e) {
+            assertThat(multi.getChunkCount(), is(2));
+        }
+        assertThat(_zooKeeper.getChildren(_groupPath, false).size(), is(5));
+        assertThat(_zooKeeper.exists(_groupPath + "/member-4", false), is(nullValue()));
+    }
+
+    @Test
+    public void testChunksStayUnderTheByteLimit() throws Exception {
+        ChunkedMulti multi = new ChunkedMulti(_zooKeeper, 2048, ChunkedMulti.DEFAULT_MAX_CHUNK_OPS);
+        for (String member : members(100)) {
+            String path = _groupPath + "/" + member;
+            multi.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL), path, null);
+        }
+        assertThat(multi.commit().size(), is(100));
+        assertThat(multi.getChunkCount() > 1, is(true));
+        assertThat(_zooKeeper.getChildren(_groupPath, false).size(), is(100));
+    }
+
+    @Test
+    public void testDeleteGroupDeletesMembersAndGroup() throws Exception {
+        _joinGroup.joinAll(_groupName, members(500));
+        DeleteGroup deleteGroup = new DeleteGroup();
+        deleteGroup.connect(ZK_CONNECTION_STRING);
+        try {
+            deleteGroup.delete(_groupName);
+        } finally {
+            deleteGroup.close();
+        }
+        assertThat(_zooKeeper.exists(_groupPath, false), is(nullValue()));
+    }
+
+    private static List<String> members(int count) {
+        List<String> members = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            members.add("member-" + i);
+        }
+        return members;
+    }
+}
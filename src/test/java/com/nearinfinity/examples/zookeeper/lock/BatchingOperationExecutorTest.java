@@ -0,0 +1,152 @@
+package com.nearinfinity.examples.zookeeper.lock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BatchingOperationExecutorTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _testLockPath;
+    private BatchingOperationExecutor _executor;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _testLockPath = "/test-batching-lock-" + System.currentTimeMillis();
+        _executor = new BatchingOperationExecutor("Test Batch", _zooKeeper, _testLockPath);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        _executor.shutdown();
+        _executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (_zooKeeper.exists(_testLockPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_testLockPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_testLockPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_testLockPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testRunsOperationWhileHoldingLock() throws Exception {
+        Future<String> future = _executor.submit(new LockHolderOperation());
+
+        assertThat(future.get(10, TimeUnit.SECONDS).startsWith("x-"), is(true));
+        _executor.shutdown();
+        _executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertThat(_zooKeeper.getChildren(_testLockPath, false).size(), is(0));
+    }
+
+    @Test
+    public void testOperationsQueuedBehindOtherProcessShareOneAcquisition() throws Exception {
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        try {
+            otherLock.lock();
+            for (int i = 0; i < 10; i++) {
+                futures.add(_executor.submit(new LockHolderOperation()));
+            }
+            otherLock.unlock();
+        } finally {
+            otherZooKeeper.close();
+        }
+
+        Set<String> holders = new HashSet<String>();
+        for (Future<String> future : futures) {
+            holders.add(future.get(10, TimeUnit.SECONDS));
+        }
+        assertThat(holders.size(), is(1));
+    }
+
+    @Test
+    public void testFailingOperationOnlyFailsItsOwnFuture() throws Exception {
+        Future<String> failing = _executor.submit(new DistributedOperation<String>() {
+            @Override
+            public String execute() throws DistributedOperationException {
+                throw new DistributedOperationException("boom");
+            }
+        });
+        Future<String> succeeding = _executor.submit(new LockHolderOperation());
+
+        try {
+            failing.get(10, TimeUnit.SECONDS);
+            fail("Expected the operation to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("boom"));
+        }
+        assertThat(succeeding.get(10, TimeUnit.SECONDS).startsWith("x-"), is(true));
+    }
+
+    @Test
+    public void testShutdownRunsSubmittedOperationsAndRejectsNewOnes() throws Exception {
+        Future<String> future = _executor.submit(new LockHolderOperation());
+        _executor.shutdown();
+
+        assertThat(_executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+        assertThat(future.isDone(), is(true));
+        try {
+            _executor.submit(new LockHolderOperation());
+            fail("Expected the submission to be rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    /**
+     * Returns the name of the znode holding the lock while the operation runs.
+     */
+    private class LockHolderOperation implements DistributedOperation<String> {
+        @Override
+        public String execute() throws DistributedOperationException {
+            try {
+                List<String> children = _zooKeeper.getChildren(_testLockPath, false);
+                assertThat(children.size(), is(1));
+                return children.get(0);
+            } catch (KeeperException e) {
+                throw new DistributedOperationException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DistributedOperationException(e);
+            }
+        }
+    }
+}
@@ -2,12 +2,18 @@ package com.nearinfinity.examples.zookeeper.lock;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
 import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.recipes.lock.ConnectionStateMonitor;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -47,6 +53,9 @@ public class BlockingWriteLockTest {
 
     @After
     public void tearDown() throws InterruptedException, KeeperException {
+        if (_zooKeeper.exists(_testLockPath, false) == null) {
+            return;
+        }
         List<String> children = _zooKeeper.getChildren(_testLockPath, false);
         for (String child : children) {
             _zooKeeper.delete(_testLockPath + "/" + child, -1);
@@ -79,6 +88,270 @@ public class BlockingWriteLockTest {
         assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
     }
 
+    @Test
+    public void testReentrantLockKeepsOneZnodeUntilLastUnlock() throws InterruptedException, KeeperException {
+        _writeLock.lock();
+        _writeLock.lock();
+        assertThat(_writeLock.getHoldCount(), is(2));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+        _writeLock.unlock();
+        assertThat(_writeLock.isHeldByCurrentThread(), is(true));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+        _writeLock.unlock();
+        assertThat(_writeLock.isHeldByCurrentThread(), is(false));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+    }
+
+    @Test
+    public void testLockCanBeReusedAfterUnlock() throws InterruptedException, KeeperException {
+        for (int i = 0; i < 3; i++) {
+            assertThat(_writeLock.lock(10, TimeUnit.SECONDS), is(true));
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+            _writeLock.unlock();
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+        }
+    }
+
+    @Test
+    public void testTimedOutLockWithdrawsItsZnode() throws Exception {
+        _writeLock.lock();
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+            assertThat(otherLock.lock(200, TimeUnit.MILLISECONDS), is(false));
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+            _writeLock.unlock();
+            assertThat(otherLock.lock(10, TimeUnit.SECONDS), is(true));
+            otherLock.unlock();
+        } finally {
+            otherZooKeeper.close();
+        }
+    }
+
+    @Test
+    public void testTryLockOnTakenLockFailsWithoutWaitingOrQueueing() throws Exception {
+        _writeLock.lock();
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+            long start = System.currentTimeMillis();
+            assertThat(otherLock.tryLock(), is(false));
+            assertThat(System.currentTimeMillis() - start < 500, is(true));
+            assertThat(otherLock.isHeldByCurrentThread(), is(false));
+
+            // the znode of the failed attempt is deleted without waiting for the answer
+            for (int i = 0; i < 50 && _zooKeeper.getChildren(_testLockPath, false).size() > 1; i++) {
+                Thread.sleep(20);
+            }
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+            _writeLock.unlock();
+            assertThat(otherLock.tryLock(), is(true));
+            assertThat(otherLock.getFencingToken() >= 0, is(true));
+            otherLock.unlock();
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+        } finally {
+            otherZooKeeper.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedLockWithdrawsItsZnode() throws Exception {
+        _writeLock.lock();
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+            AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread waiter = startLocking(otherLock, failure);
+            awaitNumberOfChildren(_zooKeeper, _testLockPath, 2);
+
+            waiter.interrupt();
+            waiter.join(5000);
+            assertThat(waiter.isAlive(), is(false));
+            assertThat(failure.get() instanceof InterruptedException, is(true));
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+        } finally {
+            otherZooKeeper.close();
+        }
+    }
+
+    @Test
+    public void testCancelledLockWithdrawsItsZnode() throws Exception {
+        _writeLock.lock();
+        assertThat(_writeLock.cancel(), is(false));
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+            AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread waiter = startLocking(otherLock, failure);
+            awaitNumberOfChildren(_zooKeeper, _testLockPath, 2);
+
+            assertThat(otherLock.cancel(), is(true));
+            waiter.join(5000);
+            assertThat(waiter.isAlive(), is(false));
+            assertThat(failure.get() instanceof CancellationException, is(true));
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+            // a cancelled lock can be locked again
+            _writeLock.unlock();
+            assertThat(otherLock.lock(10, TimeUnit.SECONDS), is(true));
+            otherLock.unlock();
+        } finally {
+            otherZooKeeper.close();
+        }
+    }
+
+    @Test
+    public void testAcquisitionReportedAfterTimeoutDoesNotCountForNextLock() throws Exception {
+        _writeLock.setCallbackExecutor(new DelayingExecutor(500));
+        // the znode is the first in the queue at once, but the acquisition is only reported after the timeout
+        assertThat(_writeLock.lock(100, TimeUnit.MILLISECONDS), is(false));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+
+        assertStaleAcquisitionIgnored();
+    }
+
+    @Test
+    public void testAcquisitionReportedAfterCancelDoesNotCountForNextLock() throws Exception {
+        _writeLock.setCallbackExecutor(new DelayingExecutor(500));
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread waiter = startLocking(_writeLock, failure);
+        awaitNumberOfChildren(_zooKeeper, _testLockPath, 1);
+
+        assertThat(_writeLock.cancel(), is(true));
+        waiter.join(5000);
+        assertThat(failure.get() instanceof CancellationException, is(true));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+
+        assertStaleAcquisitionIgnored();
+    }
+
+    @Test
+    public void testCancelEndsRetryDelayWhileDisconnected() throws Exception {
+        assertCancelledPromptlyWhileDisconnected(false);
+    }
+
+    @Test
+    public void testCancelEndsReconnectWaitWhileDisconnected() throws Exception {
+        assertCancelledPromptlyWhileDisconnected(true);
+    }
+
+    @Test
+    public void testSignalOnlyCountsForItsOwnAttempt() throws InterruptedException {
+        BlockingWriteLock.AcquiredSignal signal = new BlockingWriteLock.AcquiredSignal();
+        int first = signal.start();
+        signal.finish();
+        int second = signal.start();
+
+        signal.signal(first);
+        assertThat(signal.await(TimeUnit.MILLISECONDS.toNanos(50)), is(false));
+        signal.signal(second);
+        assertThat(signal.await(TimeUnit.MILLISECONDS.toNanos(50)), is(true));
+    }
+
+    /**
+     * Has another session take the lock, then waits for it past the report of the acquisition withdrawn before
+     */
+    private void assertStaleAcquisitionIgnored() throws Exception {
+        ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        try {
+            BlockingWriteLock otherLock = new BlockingWriteLock("Other Lock", otherZooKeeper, _testLockPath);
+            otherLock.lock();
+            assertThat(_writeLock.lock(1, TimeUnit.SECONDS), is(false));
+            assertThat(_writeLock.isHeldByCurrentThread(), is(false));
+            assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+            otherLock.unlock();
+        } finally {
+            otherZooKeeper.close();
+        }
+    }
+
+    /**
+     * Cancels a lock on a client which never connects, which would otherwise keep retrying for many seconds
+     */
+    private void assertCancelledPromptlyWhileDisconnected(boolean withMonitor) throws Exception {
+        // nothing listens here, so every attempt fails with connection loss
+        ZooKeeper unreachable = new ZooKeeper("localhost:1", 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        });
+        try {
+            BlockingWriteLock lock = new BlockingWriteLock("Disconnected Lock", unreachable, _testLockPath);
+            if (withMonitor) {
+                lock.setConnectionStateMonitor(new ConnectionStateMonitor(unreachable, null));
+            }
+            AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread waiter = startLocking(lock, failure);
+            Thread.sleep(300);
+
+            assertThat(lock.cancel(), is(true));
+            waiter.join(2000);
+            assertThat(waiter.isAlive(), is(false));
+            assertThat(failure.get() instanceof CancellationException, is(true));
+        } finally {
+            unreachable.close();
+        }
+    }
+
+    private static Thread startLocking(final BlockingWriteLock lock, final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lock.lock();
+                    lock.unlock();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Runs every task on a thread of its own after a delay, to report an acquisition late
+     */
+    private static class DelayingExecutor implements Executor {
+
+        private final long _delayMillis;
+
+        DelayingExecutor(long delayMillis) {
+            _delayMillis = delayMillis;
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(_delayMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    task.run();
+                }
+            }).start();
+        }
+    }
+
+    private void awaitNumberOfChildren(ZooKeeper zk, String path, int expectedNumber)
+            throws InterruptedException, KeeperException {
+        // the lock may still be creating its path
+        for (int i = 0; i < 250 && zk.exists(path, false) == null; i++) {
+            Thread.sleep(20);
+        }
+        for (int i = 0; i < 250 && zk.getChildren(path, false).size() != expectedNumber; i++) {
+            Thread.sleep(20);
+        }
+        assertNumberOfChildren(zk, path, expectedNumber);
+    }
+
     private void assertNumberOfChildren(ZooKeeper zk, String path, int expectedNumber)
             throws InterruptedException, KeeperException {
         List<String> children = zk.getChildren(path, false);
@@ -92,6 +92,37 @@ public class DistributedOperationExecutorTest {
         assertThat(result.result, is(opResult));
     }
 
+    @Test
+    public void testTimedResultCarriesFencingTokenAndLeaseState() throws InterruptedException, KeeperException {
+        DistributedOperationExecutor executor = new DistributedOperationExecutor(_zooKeeper,
+                LocalLockTable.DEFAULT_MAX_LOCAL_HANDOFFS, 100, TimeUnit.MILLISECONDS);
+        DistributedOperation<Void> quick = new DistributedOperation<Void>() {
+            @Override
+            public Void execute() throws DistributedOperationException {
+                return null;
+            }
+        };
+        DistributedOperation<Void> slow = new DistributedOperation<Void>() {
+            @Override
+            public Void execute() throws DistributedOperationException {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+
+        DistributedOperationResult<Void> first = executor.withLock("Test Lock", _testLockPath, quick, 10, TimeUnit.SECONDS);
+        assertThat(first.fencingToken >= 0, is(true));
+        assertThat(first.leaseExpired, is(false));
+
+        DistributedOperationResult<Void> second = executor.withLock("Test Lock", _testLockPath, slow, 10, TimeUnit.SECONDS);
+        assertThat(second.fencingToken > first.fencingToken, is(true));
+        assertThat(second.leaseExpired, is(true));
+    }
+
     @Test
     public void testWithLockHavingACLAndHavingSpecifiedTimeout() throws InterruptedException, KeeperException {
         assertThat(_zooKeeper.exists(_testLockPath, false), is(nullValue()));
@@ -133,6 +164,92 @@ public class DistributedOperationExecutorTest {
         }
     }
 
+    @Test
+    public void testLocalThreadsShareOneZnode() throws InterruptedException, KeeperException {
+        final AtomicInteger maxChildrenSeen = new AtomicInteger(0);
+        final DistributedOperation<Void> op = new DistributedOperation<Void>() {
+            @Override
+            public Void execute() throws DistributedOperationException {
+                try {
+                    int children = _zooKeeper.getChildren(_testLockPath, false).size();
+                    if (children > maxChildrenSeen.get()) {
+                        maxChildrenSeen.set(children);
+                    }
+                    Thread.sleep(50);
+                } catch (Exception ex) {
+                    throw new DistributedOperationException(ex);
+                }
+                return null;
+            }
+        };
+
+        List<Thread> opThreads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread opThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _executor.withLock("Local Lock", _testLockPath, op);
+                    } catch (Exception ex) {
+                        throw new DistributedOperationException(ex);
+                    }
+                }
+            });
+            opThread.start();
+            opThreads.add(opThread);
+        }
+        for (Thread opThread : opThreads) {
+            opThread.join();
+        }
+
+        assertThat(maxChildrenSeen.get(), is(1));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+    }
+
+    @Test
+    public void testLockIsNotHandedOverOnceTheSessionIsGone() throws Exception {
+        final ZooKeeper otherZooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        final DistributedOperationExecutor otherExecutor = new DistributedOperationExecutor(otherZooKeeper);
+        final AtomicBoolean secondRan = new AtomicBoolean();
+        final AtomicBoolean secondFinished = new AtomicBoolean();
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherExecutor.withLock("Second", _testLockPath, new DistributedOperation<Void>() {
+                        @Override
+                        public Void execute() {
+                            secondRan.set(true);
+                            return null;
+                        }
+                    }, 2, TimeUnit.SECONDS);
+                } catch (Exception ex) {
+                    // the lock cannot be requested again without a session
+                } finally {
+                    secondFinished.set(true);
+                }
+            }
+        });
+        otherExecutor.withLock("First", _testLockPath, new DistributedOperation<Void>() {
+            @Override
+            public Void execute() {
+                second.start();
+                try {
+                    // let the second thread queue up locally behind us, then lose the session
+                    Thread.sleep(200);
+                    otherZooKeeper.close();
+                } catch (InterruptedException e) {
+                    throw new DistributedOperationException(e);
+                }
+                return null;
+            }
+        });
+        second.join(10000);
+
+        assertThat(secondFinished.get(), is(true));
+        assertThat(secondRan.get(), is(false));
+    }
+
     private Thread launchDistributedOperation(final TestDistOp op) {
         Thread opThread = new Thread(new Runnable() {
             @Override
@@ -26,6 +26,7 @@ public final class EmbeddedZooKeeperServer {
     private boolean _manageDataDir;
     private int _tickTime;
     private NIOServerCnxnFactory _cnxnFactory;
+    private ZooKeeperServer _zkServer;
 
     public static final int MAX_CLIENT_CONNECTIONS = 60;
     public static final int DEFAULT_TICK_TIME = 2000;
@@ -49,6 +50,23 @@ public final class EmbeddedZooKeeperServer {
         _cnxnFactory = new NIOServerCnxnFactory();
         _cnxnFactory.configure(new InetSocketAddress(_port), MAX_CLIENT_CONNECTIONS);
         _cnxnFactory.startup(zkServer);
+        _zkServer = zkServer;
+    }
+
+    /**
+     * The number of packets the server has received from all clients so far, which is a count of the round trips
+     * made (pings included).
+     */
+    public long getPacketsReceived() {
+        return _zkServer.serverStats().getPacketsReceived();
+    }
+
+    /**
+     * Closes the session on the server, so the client connected with it is disconnected and learns on reconnecting
+     * that its session has expired.
+     */
+    public void expireSession(long sessionId) {
+        _zkServer.closeSession(sessionId);
     }
 
     public void shutdown() {
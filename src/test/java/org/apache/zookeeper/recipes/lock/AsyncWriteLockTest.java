@@ -0,0 +1,192 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AsyncWriteLockTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _testLockPath;
+    private AsyncWriteLock _writeLock;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _testLockPath = "/test-asyncWriteLock-" + System.currentTimeMillis();
+        _writeLock = new AsyncWriteLock(_zooKeeper, _testLockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        if (_zooKeeper.exists(_testLockPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_testLockPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_testLockPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_testLockPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testLock() throws Exception {
+        LockFuture future = _writeLock.lock();
+        String id = future.get(10, TimeUnit.SECONDS);
+        assertThat(id.startsWith(_testLockPath + "/"), is(true));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+    }
+
+    @Test
+    public void testRetriesFollowRetryPolicyAndCircuitBreaker() throws Exception {
+        // nothing listens here, so every attempt fails with connection loss
+        ZooKeeper unreachable = new ZooKeeper("localhost:1", 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        });
+        try {
+            AsyncWriteLock writeLock = new AsyncWriteLock(unreachable, _testLockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+            writeLock.setRetryPolicy(new JitteredBackoffRetryPolicy(10, 10, 3, 0));
+            writeLock.setCircuitBreakerThreshold(1);
+
+            assertConnectionLoss(writeLock.lock());
+            RetryMetrics metrics = writeLock.getRetryMetrics();
+            assertThat(metrics.getOperations(), is(1L));
+            assertThat(metrics.getRetries(), is(2L));
+            assertThat(metrics.getGivenUp(), is(1L));
+
+            // the circuit is open now, so the next request fails without trying
+            assertConnectionLoss(writeLock.lock());
+            assertThat(metrics.getShortCircuited(), is(1L));
+            assertThat(metrics.getRetries(), is(2L));
+        } finally {
+            unreachable.close();
+        }
+    }
+
+    @Test
+    public void testUnlockHandsLockToNextRequest() throws Exception {
+        LockFuture first = _writeLock.lock();
+        first.get(10, TimeUnit.SECONDS);
+        LockFuture second = _writeLock.lock();
+        assertThat(awaitQuietly(second), is(false));
+
+        first.unlock();
+        second.get(10, TimeUnit.SECONDS);
+        assertThat(second.isAcquired(), is(true));
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 1);
+    }
+
+    @Test
+    public void testUnlockWithdrawsPendingRequest() throws Exception {
+        LockFuture first = _writeLock.lock();
+        first.get(10, TimeUnit.SECONDS);
+        LockFuture second = _writeLock.lock();
+        assertThat(awaitQuietly(second), is(false));
+
+        second.unlock();
+        assertThat(second.isCancelled(), is(true));
+        first.unlock();
+        Thread.sleep(200);
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 0);
+    }
+
+    @Test
+    public void testManyPendingRequestsAcquireInOrder() throws Exception {
+        int requestCount = 500;
+        final CountDownLatch allAcquired = new CountDownLatch(requestCount);
+        final List<Integer> acquisitionOrder = new ArrayList<Integer>();
+        // requests are queued in the order they reach the server only once the lock dir exists
+        _zooKeeper.create(_testLockPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        for (int i = 0; i < requestCount; i++) {
+            final int requestNumber = i;
+            final LockFuture future = _writeLock.lock();
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (acquisitionOrder) {
+                        acquisitionOrder.add(requestNumber);
+                    }
+                    allAcquired.countDown();
+                    future.unlock();
+                }
+            }, SAME_THREAD);
+        }
+
+        assertThat(allAcquired.await(60, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < requestCount; i++) {
+            assertThat(acquisitionOrder.get(i), is(i));
+        }
+    }
+
+    private boolean awaitQuietly(LockFuture future) throws Exception {
+        try {
+            future.get(500, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private static void assertConnectionLoss(LockFuture future) throws Exception {
+        try {
+            future.get(20, TimeUnit.SECONDS);
+            fail("Expected connection loss");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof KeeperException.ConnectionLossException, is(true));
+        }
+    }
+
+    private void assertNumberOfChildren(ZooKeeper zk, String path, int expectedNumber)
+            throws InterruptedException, KeeperException {
+        List<String> children = zk.getChildren(path, false);
+        assertThat(children.size(), is(expectedNumber));
+    }
+}
@@ -0,0 +1,88 @@
+package org.apache.zookeeper.recipes.lock;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionStateMonitorTest {
+
+    private ConnectionStateMonitor _monitor;
+
+    @Before
+    public void setUp() {
+        _monitor = new ConnectionStateMonitor();
+    }
+
+    @Test
+    public void testReturnsAtOnceWhenConnected() throws InterruptedException {
+        _monitor.process(stateEvent(KeeperState.SyncConnected));
+
+        long start = System.currentTimeMillis();
+        assertThat(_monitor.awaitConnected(10000), is(true));
+        assertThat(System.currentTimeMillis() - start < 1000, is(true));
+    }
+
+    @Test
+    public void testParksUntilReconnected() throws InterruptedException {
+        _monitor.process(stateEvent(KeeperState.Disconnected));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                _monitor.process(stateEvent(KeeperState.SyncConnected));
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        assertThat(_monitor.awaitConnected(10000), is(true));
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+    }
+
+    @Test
+    public void testTimesOutWhileDisconnected() throws InterruptedException {
+        _monitor.process(stateEvent(KeeperState.Disconnected));
+        assertThat(_monitor.awaitConnected(100), is(false));
+    }
+
+    @Test
+    public void testStopsWaitingWhenSessionExpires() throws InterruptedException {
+        _monitor.process(stateEvent(KeeperState.Expired));
+
+        long start = System.currentTimeMillis();
+        assertThat(_monitor.awaitConnected(10000), is(false));
+        assertThat(System.currentTimeMillis() - start < 1000, is(true));
+    }
+
+    @Test
+    public void testStartsFromTheStateOfAnExistingClient() throws Exception {
+        ZooKeeper zookeeper = new ZooKeeper("localhost:1", 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        });
+        try {
+            assertThat(new ConnectionStateMonitor(zookeeper, null).isConnected(), is(false));
+        } finally {
+            zookeeper.close();
+        }
+
+        long start = System.currentTimeMillis();
+        assertThat(new ConnectionStateMonitor(zookeeper, null).awaitConnected(10000), is(false));
+        assertThat(System.currentTimeMillis() - start < 1000, is(true));
+    }
+
+    private static WatchedEvent stateEvent(KeeperState state) {
+        return new WatchedEvent(EventType.None, state, null);
+    }
+}
@@ -0,0 +1,44 @@
+package org.apache.zookeeper.recipes.lock;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JitteredBackoffRetryPolicyTest {
+
+    @Test
+    public void testDelaysStayBetweenBaseAndThreeTimesPreviousDelay() {
+        JitteredBackoffRetryPolicy policy = new JitteredBackoffRetryPolicy(100, 100000, 1000, 0);
+        long previous = 0;
+        for (int retries = 0; retries < 20; retries++) {
+            long delay = policy.getDelayBeforeRetry(retries, 0, previous);
+            assertThat(delay >= 100, is(true));
+            assertThat(delay <= Math.min(100000, Math.max(previous, 100) * 3), is(true));
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void testDelaysAreCappedAtMaxDelay() {
+        JitteredBackoffRetryPolicy policy = new JitteredBackoffRetryPolicy(100, 250, 1000, 0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getDelayBeforeRetry(5, 0, 250) <= 250, is(true));
+        }
+    }
+
+    @Test
+    public void testStopsAfterMaxAttempts() {
+        JitteredBackoffRetryPolicy policy = new JitteredBackoffRetryPolicy(0, 0, 3, 0);
+        assertThat(policy.getDelayBeforeRetry(0, 0, 0), is(0L));
+        assertThat(policy.getDelayBeforeRetry(1, 0, 0), is(0L));
+        assertThat(policy.getDelayBeforeRetry(2, 0, 0), is(RetryPolicy.STOP));
+    }
+
+    @Test
+    public void testStopsWhenDelayWouldExceedBudget() {
+        JitteredBackoffRetryPolicy policy = new JitteredBackoffRetryPolicy(100, 100, 1000, 1000);
+        assertThat(policy.getDelayBeforeRetry(3, 900, 100), is(100L));
+        assertThat(policy.getDelayBeforeRetry(4, 901, 100), is(RetryPolicy.STOP));
+    }
+}
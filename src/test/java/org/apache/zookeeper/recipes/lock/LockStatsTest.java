@@ -0,0 +1,64 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LockStatsTest {
+
+    @Test
+    public void testPercentileIsWithinFactorOfTwo() {
+        LockStats stats = new LockStats();
+        for (int i = 1; i <= 100; i++) {
+            stats.lockAcquired(i * 1000L);
+        }
+        LockStats.Histogram latency = stats.getAcquireLatency();
+        assertThat(latency.getCount(), is(100L));
+        assertThat(latency.getMax(), is(100000L));
+        assertThat(latency.getMean(), is(50500.0));
+        long p50 = latency.getPercentile(0.5);
+        assertThat(p50 >= 50000 && p50 < 100000, is(true));
+        assertThat(latency.getPercentile(0.99) <= latency.getMax(), is(true));
+    }
+
+    @Test
+    public void testGaugesAndCounters() {
+        LockStats stats = new LockStats();
+        stats.queued(3, 5);
+        stats.queued(0, 2);
+        stats.retried();
+        stats.watchFired();
+        stats.watchFired();
+        assertThat(stats.getQueuePosition(), is(0));
+        assertThat(stats.getQueueDepth(), is(2));
+        assertThat(stats.getMaxQueueDepth(), is(5));
+        assertThat(stats.getRetries(), is(1L));
+        assertThat(stats.getWatchFires(), is(2L));
+
+        stats.reset();
+        assertThat(stats.getMaxQueueDepth(), is(0));
+        assertThat(stats.getWatchFires(), is(0L));
+    }
+
+    @Test
+    public void testRegistersWithPlatformMBeanServer() throws Exception {
+        LockStats stats = new LockStats();
+        stats.lockReleased(2000000L);
+        ObjectName name = stats.register("/test-lockStats");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertThat(server.isRegistered(name), is(true));
+            assertThat((Long) server.getAttribute(name, "Releases"), is(1L));
+            assertThat((Double) server.getAttribute(name, "MaxHoldTime"), is(2.0));
+        } finally {
+            stats.unregister();
+        }
+        assertThat(server.isRegistered(name), is(false));
+    }
+}
@@ -0,0 +1,89 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PredecessorFinderTest {
+
+    private static final String DIR = "/locks";
+
+    private PredecessorFinder _finder;
+
+    @Before
+    public void setUp() {
+        _finder = new PredecessorFinder();
+    }
+
+    @Test
+    public void testFindsOwnerAndPredecessorRegardlessOfListingOrder() {
+        List<String> children = Arrays.asList(
+                "x-99-7-0000000012", "x-11-3-0000000010", "x-55-2-0000000011", "x-22-9-0000000013");
+
+        assertThat(_finder.scan(children, DIR + "/x-55-2-0000000011"), is(true));
+        assertThat(_finder.getOwner(), is("x-11-3-0000000010"));
+        assertThat(_finder.getPredecessor(), is("x-11-3-0000000010"));
+
+        assertThat(_finder.scan(children, DIR + "/x-22-9-0000000013"), is(true));
+        assertThat(_finder.getOwner(), is("x-11-3-0000000010"));
+        assertThat(_finder.getPredecessor(), is("x-99-7-0000000012"));
+    }
+
+    @Test
+    public void testOwnerHasNoPredecessor() {
+        List<String> children = Arrays.asList("x-1-2-0000000004", "x-1-1-0000000003");
+
+        assertThat(_finder.scan(children, DIR + "/x-1-1-0000000003"), is(true));
+        assertThat(_finder.getOwner(), is("x-1-1-0000000003"));
+        assertThat(_finder.getPredecessor(), is(nullValue()));
+    }
+
+    @Test
+    public void testIgnoresChildrenWithoutSequence() {
+        List<String> children = Arrays.asList("readme", "x-1-1-0000000003", "stray-", "other-abc");
+
+        assertThat(_finder.scan(children, DIR + "/x-1-1-0000000003"), is(true));
+        assertThat(_finder.getOwner(), is("x-1-1-0000000003"));
+        assertThat(_finder.getPredecessor(), is(nullValue()));
+    }
+
+    @Test
+    public void testReportsMissingOwnNode() {
+        List<String> children = Arrays.asList("x-1-1-0000000003", "x-1-2-0000000005");
+
+        assertThat(_finder.scan(children, DIR + "/x-1-3-0000000004"), is(false));
+        assertThat(_finder.getPredecessor(), is("x-1-1-0000000003"));
+    }
+
+    @Test
+    public void testOrdersAcrossSequenceWraparound() {
+        List<String> children = Arrays.asList("x-1-3--2147483647", "x-1-1-2147483646", "x-1-2--2147483648");
+
+        assertThat(_finder.scan(children, DIR + "/x-1-3--2147483647"), is(true));
+        assertThat(_finder.getOwner(), is("x-1-1-2147483646"));
+        assertThat(_finder.getPredecessor(), is("x-1-2--2147483648"));
+    }
+
+    @Test
+    public void testCountsQueueAndBlockers() {
+        List<String> children = Arrays.asList(
+                "read-1-0000000001", "write-2-0000000002", "read-3-0000000003", "read-4-0000000004",
+                "write-5-0000000005");
+
+        assertThat(_finder.scan(children, DIR + "/read-4-0000000004", "read-"), is(true));
+        assertThat(_finder.getQueueDepth(), is(5));
+        assertThat(_finder.getQueuePosition(), is(3));
+        assertThat(_finder.getBlockers(), is(1));
+        assertThat(_finder.getPredecessor(), is("write-2-0000000002"));
+
+        assertThat(_finder.scan(children, DIR + "/write-5-0000000005"), is(true));
+        assertThat(_finder.getQueuePosition(), is(4));
+        assertThat(_finder.getBlockers(), is(4));
+    }
+}
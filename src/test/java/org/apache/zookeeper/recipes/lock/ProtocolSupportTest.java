@@ -0,0 +1,168 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.io.IOException;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ProtocolSupportTest {
+
+    // nothing listens here, so the client never gets connected
+    private static final String UNREACHABLE_CONNECTION_STRING = "localhost:1";
+
+    private ZooKeeper _zooKeeper;
+    private ProtocolSupport _protocol;
+
+    @Before
+    public void setUp() throws IOException {
+        _zooKeeper = new ZooKeeper(UNREACHABLE_CONNECTION_STRING, 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+            }
+        });
+        _protocol = new ProtocolSupport(_zooKeeper);
+        _protocol.setRetryPolicy(new JitteredBackoffRetryPolicy(0, 0, 5, 0));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testRetriesAreCountedPerOperation() throws InterruptedException, KeeperException {
+        _protocol.setCircuitBreakerThreshold(0);
+
+        assertThat((Boolean) _protocol.retryOperation(new FailingOperation(2)), is(true));
+        assertThat((Boolean) _protocol.retryOperation(new FailingOperation(0)), is(true));
+
+        RetryMetrics metrics = _protocol.getRetryMetrics();
+        assertThat(metrics.getOperations(), is(2L));
+        assertThat(metrics.getRetries(), is(2L));
+        assertThat(metrics.getMaxRetriesPerOperation(), is(2L));
+        assertThat(metrics.getGivenUp(), is(0L));
+    }
+
+    @Test
+    public void testGivesUpWhenPolicyStops() throws InterruptedException {
+        _protocol.setCircuitBreakerThreshold(0);
+        FailingOperation operation = new FailingOperation(Integer.MAX_VALUE);
+
+        assertConnectionLoss(operation);
+        assertThat(operation.attempts, is(5));
+        assertThat(_protocol.getRetryMetrics().getGivenUp(), is(1L));
+    }
+
+    @Test
+    public void testOpenCircuitFailsFastWhileDisconnected() throws InterruptedException {
+        _protocol.setCircuitBreakerThreshold(2);
+        FailingOperation first = new FailingOperation(Integer.MAX_VALUE);
+        FailingOperation second = new FailingOperation(Integer.MAX_VALUE);
+
+        // the operation which opens the circuit still makes all its attempts
+        assertConnectionLoss(first);
+        assertThat(first.attempts, is(5));
+
+        assertConnectionLoss(second);
+        assertThat(second.attempts, is(0));
+        assertThat(_protocol.getRetryMetrics().getShortCircuited(), is(1L));
+    }
+
+    @Test
+    public void testDefaultLockRetriesThroughLongReconnect() throws InterruptedException, KeeperException {
+        WriteLock writeLock = new WriteLock(_zooKeeper, "/test-default-retries", null);
+        // only shortens the delay; the retry count and circuit breaker are as default
+        writeLock.setRetryDelay(1);
+        FailingOperation operation = new FailingOperation(6);
+
+        assertThat((Boolean) writeLock.retryOperation(operation), is(true));
+        assertThat(operation.attempts, is(7));
+        assertThat(writeLock.getRetryMetrics().getShortCircuited(), is(0L));
+    }
+
+    @Test
+    public void testRetriesAsSoonAsReconnectedInsteadOfSleeping() throws InterruptedException, KeeperException {
+        _protocol.setCircuitBreakerThreshold(0);
+        _protocol.setRetryPolicy(new JitteredBackoffRetryPolicy(10000, 10000, 5, 0));
+        ConnectionStateMonitor monitor = new ConnectionStateMonitor();
+        monitor.process(new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.SyncConnected, null));
+        _protocol.setConnectionStateMonitor(monitor);
+
+        long start = System.currentTimeMillis();
+        assertThat((Boolean) _protocol.retryOperation(new FailingOperation(1)), is(true));
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+    }
+
+    @Test
+    public void testInterruptEndsRetryDelay() throws KeeperException {
+        _protocol.setCircuitBreakerThreshold(0);
+        _protocol.setRetryPolicy(new JitteredBackoffRetryPolicy(10000, 10000, 5, 0));
+        FailingOperation operation = new FailingOperation(Integer.MAX_VALUE);
+
+        final Thread caller = Thread.currentThread();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                caller.interrupt();
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        try {
+            _protocol.retryOperation(operation);
+            fail("Expected the retry delay to be interrupted");
+        } catch (InterruptedException e) {
+            assertThat(System.currentTimeMillis() - start < 5000, is(true));
+        }
+        assertThat(operation.attempts, is(1));
+    }
+
+    @Test
+    public void testDefaultRetryPolicyIsBuiltOnce() {
+        _protocol.setRetryPolicy(null);
+        RetryPolicy policy = _protocol.getRetryPolicy();
+        assertThat(_protocol.getRetryPolicy() == policy, is(true));
+
+        _protocol.setRetryDelay(10);
+        assertThat(_protocol.getRetryPolicy() == policy, is(false));
+    }
+
+    private void assertConnectionLoss(ZooKeeperOperation operation) throws InterruptedException {
+        try {
+            _protocol.retryOperation(operation);
+            fail("Expected connection loss");
+        } catch (KeeperException e) {
+            assertThat(e.code(), is(KeeperException.Code.CONNECTIONLOSS));
+        }
+    }
+
+    private static class FailingOperation implements ZooKeeperOperation {
+        private final int failures;
+        int attempts;
+
+        FailingOperation(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public boolean execute() throws KeeperException {
+            if (attempts++ < failures) {
+                throw new KeeperException.ConnectionLossException();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ReadWriteLockTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _testLockPath;
+    private ReadWriteLock _lock;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING);
+        _testLockPath = "/test-readWriteLock-" + System.currentTimeMillis();
+        _lock = new ReadWriteLock(_zooKeeper, _testLockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        if (_zooKeeper.exists(_testLockPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_testLockPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_testLockPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_testLockPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testReadersShareTheLock() throws Exception {
+        LockFuture first = _lock.readLock();
+        LockFuture second = _lock.readLock();
+        LockFuture third = _lock.readLock();
+
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        third.get(10, TimeUnit.SECONDS);
+        assertNumberOfChildren(_zooKeeper, _testLockPath, 3);
+    }
+
+    @Test
+    public void testWriterWaitsForEarlierReaders() throws Exception {
+        LockFuture reader = _lock.readLock();
+        reader.get(10, TimeUnit.SECONDS);
+        LockFuture writer = _lock.writeLock();
+        assertThat(awaitQuietly(writer), is(false));
+
+        reader.unlock();
+        writer.get(10, TimeUnit.SECONDS);
+        assertThat(writer.isAcquired(), is(true));
+    }
+
+    @Test
+    public void testLaterReadersQueueBehindWaitingWriter() throws Exception {
+        LockFuture firstReader = _lock.readLock();
+        firstReader.get(10, TimeUnit.SECONDS);
+        LockFuture writer = _lock.writeLock();
+        LockFuture secondReader = _lock.readLock();
+        assertThat(awaitQuietly(writer), is(false));
+        assertThat(awaitQuietly(secondReader), is(false));
+
+        firstReader.unlock();
+        writer.get(10, TimeUnit.SECONDS);
+        assertThat(awaitQuietly(secondReader), is(false));
+
+        writer.unlock();
+        secondReader.get(10, TimeUnit.SECONDS);
+        assertThat(secondReader.isAcquired(), is(true));
+    }
+
+    @Test
+    public void testWritersExcludeEachOther() throws Exception {
+        LockFuture first = _lock.writeLock();
+        first.get(10, TimeUnit.SECONDS);
+        LockFuture second = _lock.writeLock();
+        LockFuture reader = _lock.readLock();
+        assertThat(awaitQuietly(second), is(false));
+        assertThat(awaitQuietly(reader), is(false));
+
+        first.unlock();
+        second.get(10, TimeUnit.SECONDS);
+        assertThat(awaitQuietly(reader), is(false));
+        reader.unlock();
+        second.unlock();
+    }
+
+    private boolean awaitQuietly(LockFuture future) throws Exception {
+        try {
+            future.get(500, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void assertNumberOfChildren(ZooKeeper zk, String path, int expectedNumber)
+            throws InterruptedException, KeeperException {
+        List<String> children = zk.getChildren(path, false);
+        assertThat(children.size(), is(expectedNumber));
+    }
+}
@@ -0,0 +1,514 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.nearinfinity.examples.zookeeper.util.ConnectionHelper;
+import com.nearinfinity.examples.zookeeper.util.EmbeddedZooKeeperServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WriteLockTest {
+
+    private static EmbeddedZooKeeperServer _embeddedServer;
+    private ZooKeeper _zooKeeper;
+    private String _testLockPath;
+
+    private static final int ZK_PORT = 53181;
+    private static final String ZK_CONNECTION_STRING = "localhost:" + ZK_PORT;
+
+    // long enough that no ping lands in the middle of a round trip count
+    private static final int SESSION_TIMEOUT = 30000;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        _embeddedServer = new EmbeddedZooKeeperServer(ZK_PORT);
+        _embeddedServer.start();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        _embeddedServer.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        _zooKeeper = new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT);
+        _testLockPath = "/test-writeLock-" + System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, KeeperException {
+        if (_zooKeeper.exists(_testLockPath, false) != null) {
+            List<String> children = _zooKeeper.getChildren(_testLockPath, false);
+            for (String child : children) {
+                _zooKeeper.delete(_testLockPath + "/" + child, -1);
+            }
+            _zooKeeper.delete(_testLockPath, -1);
+        }
+        _zooKeeper.close();
+    }
+
+    @Test
+    public void testUncontendedLockTakesTwoRoundTrips() throws InterruptedException, KeeperException {
+        _zooKeeper.create(_testLockPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        WriteLock writeLock = new WriteLock(_zooKeeper, _testLockPath, null);
+
+        long packetsBefore = _embeddedServer.getPacketsReceived();
+        boolean acquired = writeLock.lock();
+        long roundTrips = _embeddedServer.getPacketsReceived() - packetsBefore;
+
+        assertThat(acquired, is(true));
+        assertThat(roundTrips, is(2L));
+    }
+
+    @Test
+    public void testLockCreatesMissingDir() throws InterruptedException, KeeperException {
+        WriteLock writeLock = new WriteLock(_zooKeeper, _testLockPath, null);
+        assertThat(writeLock.lock(), is(true));
+        assertThat(writeLock.getId().startsWith(_testLockPath + "/"), is(true));
+    }
+
+    @Test
+    public void testLocksInSameSessionQueueBehindEachOther() throws InterruptedException, KeeperException {
+        WriteLock first = new WriteLock(_zooKeeper, _testLockPath, null);
+        WriteLock second = new WriteLock(_zooKeeper, _testLockPath, null);
+
+        assertThat(first.lock(), is(true));
+        assertThat(second.lock(), is(false));
+        assertThat(second.isOwner(), is(false));
+
+        first.unlock();
+        for (int i = 0; i < 50 && !second.isOwner(); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(second.isOwner(), is(true));
+    }
+
+    @Test
+    public void testFencingTokenIncreasesWithEachOwner() throws InterruptedException, KeeperException {
+        WriteLock first = new WriteLock(_zooKeeper, _testLockPath, null);
+        WriteLock second = new WriteLock(_zooKeeper, _testLockPath, null);
+
+        assertThat(first.getFencingToken(), is(-1L));
+        assertThat(first.lock(), is(true));
+        long firstToken = first.getFencingToken();
+        assertThat(firstToken >= 0, is(true));
+        first.unlock();
+        assertThat(first.getFencingToken(), is(-1L));
+
+        assertThat(second.lock(), is(true));
+        assertThat(second.getFencingToken() > firstToken, is(true));
+        second.unlock();
+    }
+
+    @Test
+    public void testLeaseRunsOutWhileLockIsHeld() throws InterruptedException, KeeperException {
+        WriteLock writeLock = new WriteLock(_zooKeeper, _testLockPath, null);
+        writeLock.setLeaseDuration(200, TimeUnit.MILLISECONDS);
+
+        assertThat(writeLock.isLeaseValid(), is(false));
+        assertThat(writeLock.lock(), is(true));
+        assertThat(writeLock.isLeaseValid(), is(true));
+        Thread.sleep(300);
+        assertThat(writeLock.isLeaseValid(), is(false));
+        assertThat(writeLock.isOwner(), is(true));
+        writeLock.unlock();
+    }
+
+    @Test
+    public void testWaitingLockQueuesUpAgainAfterSessionExpiry() throws Exception {
+        ConnectionStateMonitor monitor = new ConnectionStateMonitor();
+        ZooKeeper expiring = new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT, monitor);
+        WriteLock holder = new WriteLock(_zooKeeper, _testLockPath, null);
+        WriteLock waiter = recoveringLock(expiring, monitor, null);
+        try {
+            assertThat(holder.lock(), is(true));
+            assertThat(waiter.lock(), is(false));
+
+            expireSession(expiring);
+            for (int i = 0; i < 100 && (waiter.getZookeeper() == expiring || waiter.getId() == null); i++) {
+                Thread.sleep(100);
+            }
+            assertThat(waiter.getZookeeper() == expiring, is(false));
+            assertThat(waiter.isOwner(), is(false));
+
+            holder.unlock();
+            for (int i = 0; i < 50 && !waiter.isOwner(); i++) {
+                Thread.sleep(100);
+            }
+            assertThat(waiter.isOwner(), is(true));
+            waiter.unlock();
+        } finally {
+            waiter.getZookeeper().close();
+        }
+    }
+
+    @Test
+    public void testOwnerIsToldAboutLossAfterSessionExpiry() throws Exception {
+        ConnectionStateMonitor monitor = new ConnectionStateMonitor();
+        ZooKeeper expiring = new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT, monitor);
+        final CountDownLatch released = new CountDownLatch(1);
+        WriteLock owner = recoveringLock(expiring, monitor, new LockListener() {
+            public void lockAcquired() {
+            }
+
+            public void lockReleased() {
+                released.countDown();
+            }
+        });
+        try {
+            assertThat(owner.lock(), is(true));
+
+            expireSession(expiring);
+            assertThat(released.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(owner.isOwner(), is(false));
+            assertThat(owner.getId(), is(nullValue()));
+
+            assertThat(owner.lock(), is(true));
+            owner.unlock();
+        } finally {
+            owner.getZookeeper().close();
+        }
+    }
+
+    @Test
+    public void testOwnerIsSuspendedWhileDisconnected() throws InterruptedException, KeeperException {
+        ConnectionStateMonitor monitor = new ConnectionStateMonitor(_zooKeeper, null);
+        assertThat(monitor.isConnected(), is(true));
+        RecordingListener listener = new RecordingListener();
+        WriteLock writeLock = new WriteLock(_zooKeeper, _testLockPath, null, listener);
+        writeLock.setConnectionStateMonitor(monitor);
+
+        assertThat(writeLock.lock(), is(true));
+        assertThat(writeLock.isOwnershipValid(), is(true));
+
+        monitor.process(new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.Disconnected, null));
+        assertThat(awaitEvents(listener, "acquired suspended "), is("acquired suspended "));
+        assertThat(writeLock.isOwnershipValid(), is(false));
+        assertThat(writeLock.isOwner(), is(true));
+
+        monitor.process(new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.SyncConnected, null));
+        assertThat(awaitEvents(listener, "acquired suspended resumed "), is("acquired suspended resumed "));
+        assertThat(writeLock.isOwnershipValid(), is(true));
+        writeLock.unlock();
+    }
+
+    @Test
+    public void testOwnerIsToldAboutLockLossWhenSessionExpires() throws Exception {
+        ConnectionStateMonitor monitor = new ConnectionStateMonitor();
+        ZooKeeper expiring = new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT, monitor);
+        RecordingListener listener = new RecordingListener();
+        WriteLock owner = new WriteLock(expiring, _testLockPath, null, listener);
+        owner.setConnectionStateMonitor(monitor);
+        try {
+            assertThat(owner.lock(), is(true));
+
+            expireSession(expiring);
+            assertThat(listener.lost.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(listener.events.endsWith("lost "), is(true));
+            assertThat(owner.isOwnershipValid(), is(false));
+            assertThat(owner.isOwner(), is(false));
+        } finally {
+            expiring.close();
+        }
+    }
+
+    @Test
+    public void testSlowListenerDoesNotHoldUpOtherLocks() throws Exception {
+        final CountDownLatch inListener = new CountDownLatch(1);
+        final CountDownLatch finishListener = new CountDownLatch(1);
+        final String[] listenerThread = new String[1];
+        WriteLock slow = new WriteLock(_zooKeeper, _testLockPath + "-slow", null, new LockListener() {
+            public void lockAcquired() {
+                listenerThread[0] = Thread.currentThread().getName();
+                inListener.countDown();
+                try {
+                    finishListener.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void lockReleased() {
+            }
+        });
+        WriteLock holder = new WriteLock(_zooKeeper, _testLockPath, null);
+        WriteLock waiter = new WriteLock(_zooKeeper, _testLockPath, null);
+        try {
+            assertThat(slow.lock(), is(true));
+            assertThat(inListener.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(listenerThread[0].contains("EventThread"), is(false));
+
+            assertThat(holder.lock(), is(true));
+            assertThat(waiter.lock(), is(false));
+            holder.unlock();
+            for (int i = 0; i < 50 && !waiter.isOwner(); i++) {
+                Thread.sleep(100);
+            }
+            assertThat(waiter.isOwner(), is(true));
+            waiter.unlock();
+        } finally {
+            finishListener.countDown();
+            slow.unlock();
+            _zooKeeper.delete(_testLockPath + "-slow", -1);
+        }
+    }
+
+    @Test
+    public void testMetricsRecordContention() throws Exception {
+        LockStats stats = new LockStats();
+        WriteLock holder = new WriteLock(_zooKeeper, _testLockPath, null);
+        WriteLock waiter = new WriteLock(_zooKeeper, _testLockPath, null);
+        holder.setLockMetrics(stats);
+        waiter.setLockMetrics(stats);
+
+        assertThat(holder.lock(), is(true));
+        assertThat(waiter.lock(), is(false));
+        assertThat(stats.getAcquisitions(), is(1L));
+        assertThat(stats.getQueuePosition(), is(1));
+        assertThat(stats.getQueueDepth(), is(2));
+
+        holder.unlock();
+        for (int i = 0; i < 50 && !waiter.isOwner(); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(waiter.isOwner(), is(true));
+        assertThat(stats.getWatchFires(), is(1L));
+        assertThat(stats.getAcquisitions(), is(2L));
+        assertThat(stats.getQueuePosition(), is(0));
+        waiter.unlock();
+        assertThat(stats.getReleases(), is(2L));
+        assertThat(stats.getMaxHoldTime() > 0, is(true));
+    }
+
+    @Test
+    public void testRoundTripsPerReleaseDoNotGrowWithContenders() throws Exception {
+        long fewContenders = roundTripsToPassLockAlong(3);
+        long manyContenders = roundTripsToPassLockAlong(12);
+        // the release itself plus at most one listing by the next owner, and
+        // the next owner does not even list if it was right behind the last
+        assertThat(fewContenders <= 2 * 2 + 1, is(true));
+        assertThat(manyContenders <= 2 * 11 + 1, is(true));
+    }
+
+    @Test
+    public void testRoundTripsPastWithdrawnWaiterDoNotGrowWithContenders() throws Exception {
+        long fewContenders = roundTripsPastWithdrawnWaiter(4);
+        long manyContenders = roundTripsPastWithdrawnWaiter(12);
+        // the withdrawal, one listing and exists by the waiter behind it,
+        // then the release, after which that waiter is right behind the owner
+        assertThat(fewContenders <= 4 + 1, is(true));
+        assertThat(manyContenders <= 4 + 1, is(true));
+    }
+
+    @Test
+    public void testBlockedListenerDoesNotHoldUpAnotherLocksWatch() throws Exception {
+        // one callback thread for both locks, which the first lock's listener ties up
+        ExecutorService callbacks = Executors.newSingleThreadExecutor();
+        final CountDownLatch listenerBlocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        String otherPath = _testLockPath + "-other";
+        try {
+            WriteLock slow = new WriteLock(_zooKeeper, _testLockPath, null, new LockListener() {
+                public void lockAcquired() {
+                    listenerBlocked.countDown();
+                    try {
+                        unblock.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                public void lockReleased() {
+                }
+            });
+            slow.setCallbackExecutor(callbacks);
+            assertThat(slow.lock(), is(true));
+            assertThat(listenerBlocked.await(10, TimeUnit.SECONDS), is(true));
+
+            WriteLock[] locks = new WriteLock[3];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new WriteLock(_zooKeeper, otherPath, null);
+                locks[i].setCallbackExecutor(callbacks);
+                assertThat(locks[i].lock(), is(i == 0));
+            }
+            // the last lock watches the middle one, which was not the only
+            // one ahead of it, so its watch has to list the queue again
+            locks[0].unlock();
+            locks[1].unlock();
+            for (int i = 0; i < 50 && !locks[2].isOwner(); i++) {
+                Thread.sleep(100);
+            }
+            assertThat(locks[2].isOwner(), is(true));
+            locks[2].unlock();
+            slow.unlock();
+        } finally {
+            unblock.countDown();
+            callbacks.shutdown();
+            if (_zooKeeper.exists(otherPath, false) != null) {
+                _zooKeeper.delete(otherPath, -1);
+            }
+        }
+    }
+
+    @Test
+    public void testUnlockDoesNotWaitForLockAttemptInProgress() throws Exception {
+        // nothing listens here, so every attempt fails with connection loss
+        ZooKeeper unreachable = new ZooKeeper("localhost:1", SESSION_TIMEOUT, new Watcher() {
+            public void process(WatchedEvent event) {
+            }
+        });
+        final WriteLock writeLock = new WriteLock(unreachable, _testLockPath, null);
+        writeLock.setCircuitBreakerThreshold(0);
+        writeLock.setRetryPolicy(new JitteredBackoffRetryPolicy(500, 500, 20, 0));
+        final Object[] outcome = new Object[1];
+        Thread locker = new Thread() {
+            public void run() {
+                try {
+                    outcome[0] = writeLock.lock();
+                } catch (Exception e) {
+                    outcome[0] = e;
+                }
+            }
+        };
+        try {
+            locker.start();
+            Thread.sleep(200);
+
+            long start = System.currentTimeMillis();
+            assertThat(writeLock.isOwner(), is(false));
+            writeLock.unlock();
+            assertThat(System.currentTimeMillis() - start < 400, is(true));
+
+            // the attempt notices it has been withdrawn at its next retry
+            locker.join(3000);
+            assertThat(locker.isAlive(), is(false));
+            assertThat(outcome[0], is((Object) Boolean.FALSE));
+        } finally {
+            unreachable.close();
+        }
+    }
+
+    /**
+     * Queues up the given number of locks and releases them one by one,
+     * returning the round trips made between the first release and the
+     * last acquisition
+     */
+    private long roundTripsToPassLockAlong(int contenders) throws Exception {
+        String lockPath = _testLockPath + "-" + contenders;
+        WriteLock[] locks = new WriteLock[contenders];
+        for (int i = 0; i < contenders; i++) {
+            locks[i] = new WriteLock(_zooKeeper, lockPath, null);
+            assertThat(locks[i].lock(), is(i == 0));
+        }
+        long packetsBefore = _embeddedServer.getPacketsReceived();
+        for (int i = 0; i < contenders - 1; i++) {
+            locks[i].unlock();
+            for (int j = 0; j < 50 && !locks[i + 1].isOwner(); j++) {
+                Thread.sleep(20);
+            }
+            assertThat(locks[i + 1].isOwner(), is(true));
+        }
+        long packets = _embeddedServer.getPacketsReceived() - packetsBefore;
+        locks[contenders - 1].unlock();
+        _zooKeeper.delete(lockPath, -1);
+        return packets;
+    }
+
+    /**
+     * Queues up the given number of locks, withdraws the one right behind
+     * the owner and then releases the owner, returning the round trips made
+     * until the lock behind the withdrawn one acquires
+     */
+    private long roundTripsPastWithdrawnWaiter(int contenders) throws Exception {
+        String lockPath = _testLockPath + "-withdrawn-" + contenders;
+        WriteLock[] locks = new WriteLock[contenders];
+        for (int i = 0; i < contenders; i++) {
+            locks[i] = new WriteLock(_zooKeeper, lockPath, null);
+            assertThat(locks[i].lock(), is(i == 0));
+        }
+        long packetsBefore = _embeddedServer.getPacketsReceived();
+        locks[1].unlock();
+        // lets the lock behind it list again and watch the owner
+        Thread.sleep(200);
+        locks[0].unlock();
+        for (int j = 0; j < 50 && !locks[2].isOwner(); j++) {
+            Thread.sleep(20);
+        }
+        assertThat(locks[2].isOwner(), is(true));
+        long packets = _embeddedServer.getPacketsReceived() - packetsBefore;
+        for (int i = 2; i < contenders; i++) {
+            locks[i].unlock();
+        }
+        _zooKeeper.delete(lockPath, -1);
+        return packets;
+    }
+
+    private static String awaitEvents(RecordingListener listener, String expected) throws InterruptedException {
+        for (int i = 0; i < 50 && !listener.events.equals(expected); i++) {
+            Thread.sleep(100);
+        }
+        return listener.events;
+    }
+
+    private static class RecordingListener implements SessionAwareLockListener {
+        final CountDownLatch lost = new CountDownLatch(1);
+        volatile String events = "";
+
+        public void lockAcquired() {
+            events += "acquired ";
+        }
+
+        public void lockReleased() {
+            events += "released ";
+        }
+
+        public void lockSuspended() {
+            events += "suspended ";
+        }
+
+        public void lockResumed() {
+            events += "resumed ";
+        }
+
+        public void lockLost() {
+            events += "lost ";
+            lost.countDown();
+        }
+    }
+
+    private WriteLock recoveringLock(ZooKeeper zooKeeper, final ConnectionStateMonitor monitor,
+                                     LockListener listener) {
+        WriteLock writeLock = new WriteLock(zooKeeper, _testLockPath, null, listener);
+        writeLock.setConnectionStateMonitor(monitor);
+        writeLock.setZooKeeperSupplier(new ZooKeeperSupplier() {
+            public ZooKeeper get(ZooKeeper expired) throws IOException, InterruptedException {
+                expired.close();
+                return new ConnectionHelper().connect(ZK_CONNECTION_STRING, SESSION_TIMEOUT, monitor);
+            }
+        });
+        return writeLock;
+    }
+
+    private static void expireSession(ZooKeeper zooKeeper) {
+        _embeddedServer.expireSession(zooKeeper.getSessionId());
+    }
+}
@@ -0,0 +1,82 @@
+package org.apache.zookeeper.recipes.lock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ZNodeNameTest {
+
+    @Test
+    public void testParsesSequence() {
+        assertThat(new ZNodeName("/locks/x-1-2-0000000042").getSequence(), is(42L));
+        assertThat(new ZNodeName("x-1-2-2147483647").getSequence(), is((long) Integer.MAX_VALUE));
+        assertThat(new ZNodeName("x-1-2--2147483648").getSequence(), is((long) Integer.MIN_VALUE));
+        assertThat(new ZNodeName("x-1-2-99999999999").getSequence(), is(99999999999L));
+    }
+
+    @Test
+    public void testNamesWithoutSequence() {
+        assertThat(new ZNodeName("x-1-2-").getSequence(), is(ZNodeName.NO_SEQUENCE));
+        assertThat(new ZNodeName("x-1-2-00a1").getSequence(), is(ZNodeName.NO_SEQUENCE));
+        assertThat(new ZNodeName("nodash").getSequence(), is(ZNodeName.NO_SEQUENCE));
+        assertThat(new ZNodeName("12345").getSequence(), is(ZNodeName.NO_SEQUENCE));
+        assertThat(new ZNodeName("x-1-2-1234567890123456789").getSequence(), is(ZNodeName.NO_SEQUENCE));
+    }
+
+    @Test
+    public void testPrefix() {
+        assertThat(new ZNodeName("/locks/x-1-2-0000000042").getPrefix(), is("/locks/x-1-2"));
+        assertThat(new ZNodeName("/locks/x-1-2--2147483648").getPrefix(), is("/locks/x-1-2"));
+        assertThat(new ZNodeName("/locks/x-1-abc").getPrefix(), is("/locks/x-1"));
+    }
+
+    @Test
+    public void testOrdersBySequenceBeforePrefix() {
+        List<ZNodeName> names = sorted("x-9-1-0000000001", "x-1-1-0000000003", "x-5-1-0000000002");
+        assertThat(namesOf(names), is(Arrays.asList("x-9-1-0000000001", "x-5-1-0000000002", "x-1-1-0000000003")));
+    }
+
+    @Test
+    public void testOrdersAcrossWraparound() {
+        List<ZNodeName> names = sorted("x-1-4--2147483647", "x-1-1-2147483646", "x-1-3--2147483648", "x-1-2-2147483647");
+        assertThat(namesOf(names),
+                is(Arrays.asList("x-1-1-2147483646", "x-1-2-2147483647", "x-1-3--2147483648", "x-1-4--2147483647")));
+    }
+
+    @Test
+    public void testNamesWithoutSequenceSortLast() {
+        List<ZNodeName> names = sorted("zzz", "x-1-1-0000000007", "aaa");
+        assertThat(namesOf(names), is(Arrays.asList("x-1-1-0000000007", "aaa", "zzz")));
+    }
+
+    @Test
+    public void testFencingTokensKeepIncreasingAcrossWraparound() {
+        assertThat(ZNodeName.fencingToken("/locks/x-1-1-0000000007"), is(7L));
+        assertThat(ZNodeName.fencingToken("/locks/x-1-1-2147483647"), is(2147483647L));
+        assertThat(ZNodeName.fencingToken("/locks/x-1-1--2147483648"), is(2147483648L));
+        assertThat(ZNodeName.fencingToken("/locks/readme"), is(-1L));
+    }
+
+    private List<ZNodeName> sorted(String... names) {
+        List<ZNodeName> result = new ArrayList<ZNodeName>();
+        for (String name : names) {
+            result.add(new ZNodeName(name));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private List<String> namesOf(List<ZNodeName> names) {
+        List<String> result = new ArrayList<String>();
+        for (ZNodeName name : names) {
+            result.add(name.getName());
+        }
+        return result;
+    }
+}